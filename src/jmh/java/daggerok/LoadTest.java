@@ -0,0 +1,108 @@
+package daggerok;
+
+import io.vavr.control.Try;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * wrk-like closed loop HTTP load driver: given amount of concurrent clients are sending requests one after another
+ * for given duration (after warmup), so throughput of running server can be compared per server.protocol:
+ * - http1: HTTP/1.1 keep-alive, every client holds its own connection
+ * - h2c: HTTP/2 cleartext (upgraded from HTTP/1.1), clients are multiplexed over shared connection
+ * <p>
+ * Usage (server must be started first, for example: java -Dserver.protocol=http1 -jar target/*-all.jar):
+ * ./mvnw -P benchmarks -Dbenchmarks.main=daggerok.LoadTest \
+ * -Djmh.args="http://127.0.0.1:8080/health http1 64 10" # url, protocol, clients, seconds [, warmup seconds]
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        URI uri = URI.create(args.length > 0 ? args[0] : "http://127.0.0.1:8080/health");
+        String protocol = args.length > 1 ? args[1] : "h2c";
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int warmupSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        HttpClient.Version version = "http1".equals(protocol) ? HttpClient.Version.HTTP_1_1 : HttpClient.Version.HTTP_2;
+        HttpRequest request = HttpRequest.newBuilder(uri).version(version).GET().build();
+        List<HttpClient> httpClients = new ArrayList<>();
+        // HTTP/1.1: client per connection, HTTP/2: single connection carrying all streams
+        for (int i = 0; i < ("http1".equals(protocol) ? clients : 1); i++)
+            httpClients.add(HttpClient.newBuilder().version(version).connectTimeout(Duration.ofSeconds(5)).build());
+
+        System.out.printf("%s %s: %d clients, %d s (+%d s warmup)%n", protocol, uri, clients, seconds, warmupSeconds);
+        run(httpClients, request, clients, warmupSeconds);
+        Result result = run(httpClients, request, clients, seconds);
+        System.out.printf("requests: %d, errors: %d, throughput: %.1f req/s%n",
+                          result.requests, result.errors, result.requests / (double) seconds);
+        System.out.printf("latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                          result.percentile(50), result.percentile(90), result.percentile(99), result.percentile(100));
+    }
+
+    private static Result run(List<HttpClient> httpClients, HttpRequest request, int clients, int seconds)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        AtomicLong errors = new AtomicLong();
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        CountDownLatch done = new CountDownLatch(clients);
+        IntStream.range(0, clients).forEach(client -> {
+            Thread thread = new Thread(() -> {
+                HttpClient httpClient = httpClients.get(client % httpClients.size());
+                long[] own = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    long startedAt = System.nanoTime();
+                    int status = Try.of(() -> httpClient.send(request, HttpResponse.BodyHandlers.discarding())
+                                                        .statusCode())
+                                    .getOrElse(-1);
+                    if (status < 200 || status >= 300) errors.incrementAndGet();
+                    if (count == own.length) own = Arrays.copyOf(own, count * 2);
+                    own[count++] = System.nanoTime() - startedAt;
+                }
+                latencies[client] = own;
+                counts[client] = count;
+                done.countDown();
+            }, "load-test-" + client);
+            thread.setDaemon(true);
+            thread.start();
+        });
+        done.await();
+        long[] all = IntStream.range(0, clients)
+                              .mapToObj(client -> Arrays.stream(latencies[client], 0, counts[client]))
+                              .flatMapToLong(stream -> stream)
+                              .sorted()
+                              .toArray();
+        return new Result(all, errors.get());
+    }
+
+    private static class Result {
+
+        private final long[] sortedLatencies;
+        private final long requests;
+        private final long errors;
+
+        private Result(long[] sortedLatencies, long errors) {
+            this.sortedLatencies = sortedLatencies;
+            this.requests = sortedLatencies.length;
+            this.errors = errors;
+        }
+
+        // in milliseconds
+        private double percentile(int percentile) {
+            if (sortedLatencies.length == 0) return 0;
+            int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package daggerok.domain;
+
+import daggerok.eventstore.events.CounterCreated;
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.DomainEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory replay of aggregate history: Counter.rebuild across history sizes, from collected history and folded
+ * right from stream. Time should grow linearly with history size, while allocation per rebuild (-prof gc,
+ * gc.alloc.rate.norm) should stay constant: replayed events are neither boxed nor recorded.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class CounterRebuildBenchmark {
+
+    @Param({ "10", "1000", "100000", "1000000" })
+    public int historySize;
+
+    private List<DomainEvent> domainEvents;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        UUID aggregateId = UUID.randomUUID();
+        ZonedDateTime at = ZonedDateTime.now();
+        domainEvents = new ArrayList<>(historySize);
+        domainEvents.add(new CounterCreated(aggregateId, "benchmark", at));
+        for (int i = 1; i < historySize; i++) {
+            domainEvents.add(new CounterIncremented(aggregateId, "benchmark", 1000L, at));
+        }
+    }
+
+    @Benchmark
+    public Counter rebuild() {
+        return Counter.rebuild(new Counter(), domainEvents);
+    }
+
+    @Benchmark
+    public Counter rebuildFromStream() {
+        return Counter.rebuild(new Counter(), domainEvents.stream());
+    }
+}
@@ -0,0 +1,69 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.DomainEvent;
+import daggerok.jackson.JacksonConfig;
+import io.vavr.control.Try;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Shared fixtures of JMH benchmarks: same ObjectMapper as application uses, event stores on top of temporary
+ * dbBasePath (removed after trial), so benchmarks can run offline on any box.
+ */
+final class Benchmarks {
+
+    static final String FILE = "file";
+    static final String FILE_MMAP = "file-mmap";
+    static final String SEGMENT = "segment";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private Benchmarks() {}
+
+    static ObjectMapper objectMapper() {
+        return JacksonConfig.objectMapper(false);
+    }
+
+    static Path tempDbBasePath() {
+        return Try.of(() -> Files.createTempDirectory("eventstore-benchmark-"))
+                  .getOrElseThrow(e -> new IllegalStateException(e));
+    }
+
+    static EventStore eventStore(String engine, Path dbBasePath, ObjectMapper objectMapper) {
+        StorageEngine storageEngine = SEGMENT.equals(engine)
+                ? new SegmentStorageEngine(dbBasePath, objectMapper, SegmentStorageEngine.DEFAULT_MAX_SEGMENT_SIZE)
+                : new FileStorageEngine(dbBasePath, objectMapper, FILE_MMAP.equals(engine));
+        EventStore eventStore = new EventStore(storageEngine, new JsonEventCodec(objectMapper), objectMapper,
+                                               new AggregateCache(Collections.emptyMap()), Snapshotter.disabled(),
+                                               new AllStream(dbBasePath, AllStream.DEFAULT_LIVE_EVENTS));
+        eventStore.postConstruct();
+        return eventStore;
+    }
+
+    // append history in batches, one by one appends would make trial setup longer than benchmark itself
+    static void appendHistory(EventStore eventStore, UUID aggregateId, int events) {
+        for (int from = 0; from < events; from += BATCH_SIZE) {
+            DomainEvent[] batch = IntStream.range(from, Math.min(events, from + BATCH_SIZE))
+                                           .mapToObj(i -> new CounterIncremented(aggregateId, "benchmark", 1L, null))
+                                           .toArray(DomainEvent[]::new);
+            eventStore.append(aggregateId, EventStore.ANY_VERSION, batch);
+        }
+    }
+
+    static void close(EventStore eventStore, Path dbBasePath) {
+        eventStore.preDestroy();
+        Try.run(() -> {
+            try (Stream<Path> paths = Files.walk(dbBasePath)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.DomainEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On disk record codecs: {@link JsonEventCodec} vs {@link BinaryEventCodec} encode and decode of the same event, run it
+ * with -prof gc to compare allocation per operation too.
+ */
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventCodecBenchmark {
+
+    @Param({ "json", "binary" })
+    private String codec;
+
+    private EventCodec eventCodec;
+    private DomainEvent domainEvent;
+    private byte[] record;
+
+    @Setup
+    public void setUp() {
+        eventCodec = "binary".equals(codec) ? new BinaryEventCodec() : new JsonEventCodec(Benchmarks.objectMapper());
+        domainEvent = new CounterIncremented(UUID.randomUUID(), "max", 2L, null);
+        record = eventCodec.encode(domainEvent);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return eventCodec.encode(domainEvent);
+    }
+
+    @Benchmark
+    public DomainEvent decode() {
+        return eventCodec.decode(record);
+    }
+}
@@ -0,0 +1,49 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import daggerok.eventstore.events.CounterIncremented;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Event append serialization: previous writeValueAsString -> readTree -> getBytes round trip vs streaming
+ * {@link JsonEventCodec}, run it with -prof gc to compare allocation per operation (gc.alloc.rate.norm).
+ */
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventSerializationBenchmark {
+
+    private ObjectMapper objectMapper;
+    private JsonEventCodec eventCodec;
+    private CounterIncremented domainEvent;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Benchmarks.objectMapper();
+        eventCodec = new JsonEventCodec(objectMapper);
+        domainEvent = new CounterIncremented(UUID.randomUUID(), "max", 2L, null);
+    }
+
+    @Benchmark
+    public byte[] writeValueAsStringAndReadTree() throws Exception {
+        String json = objectMapper.writeValueAsString(domainEvent);
+        JsonNode jsonNode = objectMapper.readTree(json);
+        if (Objects.isNull(jsonNode.get("type"))) throw new IllegalArgumentException(json);
+        return json.getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] streamingSerializer() {
+        return eventCodec.encode(domainEvent);
+    }
+}
@@ -0,0 +1,59 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.DomainEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * EventStore.appendBatch (what POST /events/collection does) across batch sizes, events of each batch are spread over
+ * 10 aggregates. Divide score by batchSize to compare per event cost.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+public class EventStoreAppendBatchBenchmark {
+
+    @Param({ Benchmarks.FILE, Benchmarks.SEGMENT })
+    public String engine;
+
+    @Param({ "1", "100", "10000" })
+    public int batchSize;
+
+    private Path dbBasePath;
+    private EventStore eventStore;
+    private List<DomainEvent> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dbBasePath = Benchmarks.tempDbBasePath();
+        eventStore = Benchmarks.eventStore(engine, dbBasePath, Benchmarks.objectMapper());
+        UUID[] aggregateIds = IntStream.range(0, 10)
+                                       .mapToObj(i -> UUID.randomUUID())
+                                       .toArray(UUID[]::new);
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new CounterIncremented(aggregateIds[i % aggregateIds.length], "benchmark", 1L, null));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.close(eventStore, dbBasePath);
+    }
+
+    @Benchmark
+    public Map<UUID, Long> appendBatch() {
+        return eventStore.appendBatch(batch);
+    }
+}
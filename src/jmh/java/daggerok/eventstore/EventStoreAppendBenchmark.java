@@ -0,0 +1,69 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.DomainEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * EventStore.append (single event) and EventStore.appendAll (10 events) over a set of aggregates, throughput and
+ * latency percentiles for both storage engines.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+public class EventStoreAppendBenchmark {
+
+    @Param({ Benchmarks.FILE, Benchmarks.SEGMENT })
+    public String engine;
+
+    @Param({ "1000" })
+    public int aggregates;
+
+    private Path dbBasePath;
+    private EventStore eventStore;
+    private UUID[] aggregateIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ObjectMapper objectMapper = Benchmarks.objectMapper();
+        dbBasePath = Benchmarks.tempDbBasePath();
+        eventStore = Benchmarks.eventStore(engine, dbBasePath, objectMapper);
+        aggregateIds = IntStream.range(0, aggregates)
+                                .mapToObj(i -> UUID.randomUUID())
+                                .toArray(UUID[]::new);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.close(eventStore, dbBasePath);
+    }
+
+    @Benchmark
+    public void append() {
+        eventStore.append(new CounterIncremented(randomAggregateId(), "benchmark", 1L, null));
+    }
+
+    @Benchmark
+    public void appendAll() {
+        UUID aggregateId = randomAggregateId();
+        DomainEvent[] domainEvents = new DomainEvent[10];
+        for (int i = 0; i < domainEvents.length; i++) {
+            domainEvents[i] = new CounterIncremented(aggregateId, "benchmark", 1L, null);
+        }
+        eventStore.appendAll(domainEvents);
+    }
+
+    private UUID randomAggregateId() {
+        return aggregateIds[ThreadLocalRandom.current().nextInt(aggregateIds.length)];
+    }
+}
@@ -0,0 +1,51 @@
+package daggerok.eventstore;
+
+import daggerok.domain.Counter;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventStore.findAll across amount of stored aggregates, for both storage engines.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+public class EventStoreFindAllBenchmark {
+
+    @Param({ Benchmarks.FILE, Benchmarks.SEGMENT })
+    public String engine;
+
+    @Param({ "10", "1000", "10000" })
+    public int aggregates;
+
+    private Path dbBasePath;
+    private EventStore eventStore;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dbBasePath = Benchmarks.tempDbBasePath();
+        eventStore = Benchmarks.eventStore(engine, dbBasePath, Benchmarks.objectMapper());
+        for (int i = 0; i < aggregates; i++) {
+            Counter counter = new Counter();
+            counter.create(UUID.randomUUID(), "benchmark");
+            eventStore.snapshot(counter);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.close(eventStore, dbBasePath);
+    }
+
+    @Benchmark
+    public Collection<UUID> findAll() {
+        return eventStore.findAll();
+    }
+}
@@ -0,0 +1,49 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.DomainEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventStore.read of whole aggregate history across history sizes, for both storage engines.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+public class EventStoreReadBenchmark {
+
+    @Param({ Benchmarks.FILE, Benchmarks.FILE_MMAP, Benchmarks.SEGMENT })
+    public String engine;
+
+    @Param({ "10", "1000", "100000", "1000000" })
+    public int historySize;
+
+    private Path dbBasePath;
+    private EventStore eventStore;
+    private UUID aggregateId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dbBasePath = Benchmarks.tempDbBasePath();
+        eventStore = Benchmarks.eventStore(engine, dbBasePath, Benchmarks.objectMapper());
+        aggregateId = UUID.randomUUID();
+        Benchmarks.appendHistory(eventStore, aggregateId, historySize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.close(eventStore, dbBasePath);
+    }
+
+    @Benchmark
+    public Collection<DomainEvent> read() {
+        return eventStore.read(aggregateId);
+    }
+}
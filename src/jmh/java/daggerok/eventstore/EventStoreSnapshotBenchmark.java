@@ -0,0 +1,63 @@
+package daggerok.eventstore;
+
+import daggerok.domain.Counter;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command path of CounterResource: EventStore.loadAggregate, increment, EventStore.snapshot. Every thread works with
+ * its own aggregate, so there are no optimistic concurrency conflicts.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+public class EventStoreSnapshotBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+
+        @Param({ Benchmarks.FILE, Benchmarks.SEGMENT })
+        public String engine;
+
+        private Path dbBasePath;
+        private EventStore eventStore;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dbBasePath = Benchmarks.tempDbBasePath();
+            eventStore = Benchmarks.eventStore(engine, dbBasePath, Benchmarks.objectMapper());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Benchmarks.close(eventStore, dbBasePath);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Aggregate {
+
+        private UUID aggregateId;
+
+        @Setup(Level.Trial)
+        public void setUp(Store store) {
+            Counter counter = new Counter();
+            aggregateId = UUID.randomUUID();
+            counter.create(aggregateId, "benchmark");
+            store.eventStore.snapshot(counter);
+        }
+    }
+
+    @Benchmark
+    public Counter snapshot(Store store, Aggregate aggregate) {
+        Counter counter = store.eventStore.loadAggregate(aggregate.aggregateId);
+        counter.increment("benchmark", 1L);
+        store.eventStore.snapshot(counter);
+        return counter;
+    }
+}
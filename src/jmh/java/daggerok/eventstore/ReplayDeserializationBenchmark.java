@@ -0,0 +1,58 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import daggerok.domain.Counter;
+import daggerok.eventstore.events.DomainEvent;
+import daggerok.jackson.JacksonConfig;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events deserialized per second while aggregate history is replayed: objectMapper.readValue(record, DomainEvent.class)
+ * per event (polymorphic type is resolved by every call) vs pre-built ObjectReader of {@link JsonEventCodec}, both
+ * with reflection based and with Blackbird (eventStore.jackson.blackbird) property accessors.
+ */
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ReplayDeserializationBenchmark.EVENTS)
+public class ReplayDeserializationBenchmark {
+
+    static final int EVENTS = 1000;
+
+    @Param({ "false", "true" })
+    public boolean blackbird;
+
+    private ObjectMapper objectMapper;
+    private JsonEventCodec eventCodec;
+    private byte[][] records;
+
+    @Setup
+    public void setUp() {
+        objectMapper = JacksonConfig.objectMapper(blackbird);
+        eventCodec = new JsonEventCodec(objectMapper);
+        Counter counter = new Counter();
+        counter.create(UUID.randomUUID(), "replay");
+        for (int i = 1; i < EVENTS; i++) counter.increment("max", 2L);
+        records = counter.getEventStream()
+                         .stream()
+                         .map(eventCodec::encode)
+                         .toArray(byte[][]::new);
+    }
+
+    @Benchmark
+    public void objectMapperReadValue(Blackhole blackhole) throws Exception {
+        for (byte[] record : records) blackhole.consume(objectMapper.readValue(record, DomainEvent.class));
+    }
+
+    @Benchmark
+    public void objectReader(Blackhole blackhole) {
+        for (byte[] record : records) blackhole.consume(eventCodec.decode(record));
+    }
+}
@@ -1,29 +1,56 @@
 package daggerok;
 
+import daggerok.eventstore.EventStoreConfig;
+import daggerok.infrastructure.IndexedClasses;
+import daggerok.infrastructure.NettyServer;
+import daggerok.infrastructure.NonBlockingStreams;
+import daggerok.infrastructure.StartupPhases;
 import io.netty.channel.Channel;
 import lombok.extern.log4j.Log4j2;
-import org.glassfish.jersey.netty.httpserver.NettyHttpContainerProvider;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
 
-import java.net.URI;
-import java.time.Duration;
-import java.time.Instant;
+import javax.ws.rs.Path;
+import javax.ws.rs.ext.Provider;
+import java.util.Map;
+import java.util.Set;
 
 @Log4j2
 public class Main extends ResourceConfig {
 
     public Main() {
-        packages(true, Main.class.getPackage().getName());
+        this(EventStoreConfig.load());
+    }
+
+    // server.registration: index (resources and providers are found in build-time Jandex index, falls back to scan if
+    // there is no index) or scan (Jersey is scanning classpath packages)
+    public Main(Map<String, String> config) {
+        String packageName = Main.class.getPackage().getName();
+        String registration = config.getOrDefault("server.registration", "index");
+        if (!"index".equals(registration) && !"scan".equals(registration))
+            throw new IllegalStateException(String.format("unknown server.registration: %s", registration));
+        Set<Class<?>> indexed = "index".equals(registration)
+                ? IndexedClasses.annotatedBy(packageName, Path.class, Provider.class).orElse(null)
+                : null;
+        if (indexed != null) {
+            registerClasses(indexed);
+            log.info("registered {} indexed resources and providers", indexed.size());
+        } else {
+            if ("index".equals(registration)) log.warn("no Jandex index found, scanning {} package", packageName);
+            packages(true, packageName);
+        }
+        property(ServerProperties.WADL_FEATURE_DISABLE, true);
     }
 
     public static void main(String[] args) {
-        Instant startAt = Instant.now();
-        URI baseUri = URI.create("http://127.0.0.1:8080/");
-        ResourceConfig configuration = ResourceConfig.forApplicationClass(Main.class);
-        Channel server = NettyHttpContainerProvider.createHttp2Server(baseUri, configuration, null);
+        StartupPhases.recordJvm();
+        StartupPhases.begin("startup");
+        Map<String, String> config = EventStoreConfig.load();
+        Channel server = new NettyServer(config).start(new Main(config));
+        NonBlockingStreams.install(server);
 
         Runtime.getRuntime().addShutdownHook(new Thread(server::close));
-        log.info("Server started in {} sec. Use CTRL+C to quit",
-                 Duration.between(startAt, Instant.now()).toMillis() / 1000.0);
+        StartupPhases.end("startup");
+        log.info("Server started in {} sec. Use CTRL+C to quit", StartupPhases.getMillis().get("startup") / 1000.0);
     }
 }
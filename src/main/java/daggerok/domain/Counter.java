@@ -7,8 +7,6 @@ import daggerok.eventstore.events.CounterCreated;
 import daggerok.eventstore.events.CounterIncremented;
 import daggerok.eventstore.events.CounterSuspended;
 import daggerok.eventstore.events.DomainEvent;
-import io.vavr.API;
-import io.vavr.collection.List;
 import lombok.Getter;
 import lombok.ToString;
 import lombok.extern.log4j.Log4j2;
@@ -19,10 +17,7 @@ import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
-
-import static io.vavr.API.$;
-import static io.vavr.API.Case;
-import static io.vavr.Predicates.instanceOf;
+import java.util.stream.Stream;
 
 @Getter
 @Log4j2
@@ -46,12 +41,17 @@ public class Counter implements Function<DomainEvent, Counter> {
     @JsonInclude(JsonInclude.Include.NON_EMPTY)
     private String name;
 
+    // primitive: replay is not boxing every incremented value
     @JsonInclude(JsonInclude.Include.NON_NULL)
-    private Long counter;
+    private long counter;
 
     @JsonInclude(JsonInclude.Include.NON_NULL)
     private boolean suspended;
 
+    // amount of events applied, it's not a part of counter JSON (nor of its snapshot state, which stores it by itself)
+    @JsonIgnore
+    private long version;
+
     public Counter() {
         this(null, null, null, null, null, true);
     }
@@ -67,7 +67,7 @@ public class Counter implements Function<DomainEvent, Counter> {
         this.createdAt = createdAt;
         this.modifiedAt = modifiedAt;
         this.name = name;
-        this.counter = counter;
+        this.counter = Objects.isNull(counter) ? 0L : counter;
         this.suspended = suspended;
     }
 
@@ -80,70 +80,105 @@ public class Counter implements Function<DomainEvent, Counter> {
             throw new IllegalStateException("current aggregate already initialized with some name");
         if (Objects.isNull(id)) throw new IllegalStateException("id may not be null");
         if (Objects.isNull(counterName)) throw new IllegalStateException("counterName may not be null");
-        on(new CounterCreated(id, counterName, ZonedDateTime.now()));
+        apply(new CounterCreated(id, counterName, ZonedDateTime.now()));
     }
 
     public void increment(String byWhom, Long withValue) {
         if (Objects.isNull(this.aggregateId)) throw new IllegalStateException("counter has not been created.");
         if (withValue < 1) throw new IllegalStateException("counter can be incremented only with positive numbers.");
-        on(new CounterIncremented(aggregateId, byWhom, withValue, ZonedDateTime.now()));
+        apply(new CounterIncremented(aggregateId, byWhom, withValue, ZonedDateTime.now()));
+        log.debug("{} counter incremented by {} with {}", name, byWhom, withValue);
     }
 
     public void suspend(String byWhom, String reason) {
         if (Objects.isNull(this.aggregateId))
             throw new IllegalStateException("counter has not been created.");
-        on(new CounterSuspended(aggregateId, byWhom, reason, ZonedDateTime.now()));
+        apply(new CounterSuspended(aggregateId, byWhom, reason, ZonedDateTime.now()));
+        log.debug("{} counter suspended by {} with reason: {}", name, byWhom, reason);
     }
 
     /* event sourcing */
 
+    // replays stored history on top of snapshot (mutated and returned): events are folded one by one without
+    // allocations and are not recorded into eventStream, which only holds new events of commands not appended yet
     public static Counter rebuild(Counter snapshot, Collection<DomainEvent> domainEvents) {
-        Counter counter = List.ofAll(domainEvents)
-                              .foldLeft(snapshot, Counter::apply);
-        counter.eventStream.clear();
-        return counter;
+        for (DomainEvent domainEvent : domainEvents) snapshot.replay(domainEvent);
+        return rebuilt(snapshot);
+    }
+
+    // same as above, but folds history right while it's read, so it's never collected in memory
+    public static Counter rebuild(Counter snapshot, Stream<DomainEvent> domainEvents) {
+        domainEvents.forEachOrdered(snapshot::replay);
+        return rebuilt(snapshot);
+    }
+
+    public Counter copy() {
+        Counter copy = new Counter(aggregateId, createdAt, modifiedAt, name, getCounter(), suspended);
+        copy.version = version;
+        return copy;
+    }
+
+    // snapshot state taken at given version, history after that version is replayed on top of it
+    public Counter restoredAt(long snapshotVersion) {
+        version = snapshotVersion;
+        return this;
     }
 
+    // null until counter is created
+    public Long getCounter() {
+        return Objects.isNull(aggregateId) ? null : counter;
+    }
+
+    // applies new event and records it into eventStream (to be appended by event store)
     @Override
     public Counter apply(DomainEvent domainEvent) {
-        return API.Match(domainEvent).of(
-                Case($(instanceOf(CounterCreated.class)), this::on),
-                Case($(instanceOf(CounterIncremented.class)), this::on),
-                Case($(instanceOf(CounterSuspended.class)), this::on),
-                Case($(), this::onFallback)
-        );
+        eventStream.add(domainEvent);
+        return replay(domainEvent);
+    }
+
+    // applies stored event: plain type dispatch (most frequent event first), nothing is recorded
+    public Counter replay(DomainEvent domainEvent) {
+        if (domainEvent instanceof CounterIncremented) return on((CounterIncremented) domainEvent);
+        if (domainEvent instanceof CounterCreated) return on((CounterCreated) domainEvent);
+        if (domainEvent instanceof CounterSuspended) return on((CounterSuspended) domainEvent);
+        return onFallback(domainEvent);
     }
 
     /* events */
 
     private Counter on(CounterCreated event) {
-        eventStream.add(event);
         aggregateId = event.getAggregateId();
         createdAt = modifiedAt = event.getAt();
         name = event.getCounterName();
         counter = 0L;
         suspended = false;
+        version++;
         return this;
     }
 
     private Counter on(CounterIncremented event) {
-        eventStream.add(event);
         counter += event.getWithValue();
         modifiedAt = event.getAt();
-        log.debug("{} counter incremented by {} with {}", name, event.getBy(), event.getWithValue());
+        version++;
         return this;
     }
 
     private Counter on(CounterSuspended event) {
-        eventStream.add(event);
         suspended = true;
         modifiedAt = event.getAt();
-        log.debug("{} counter suspended by {} with reason: {}", name, event.getBy(), event.getReason());
+        version++;
         return this;
     }
 
-    private <EVENT extends DomainEvent> Counter onFallback(EVENT event) {
+    private Counter onFallback(DomainEvent event) {
         log.warn("unexpected event occurred: {}", event);
+        version++;
         return this;
     }
+
+    // events of snapshot itself (if any) are not new anymore
+    private static Counter rebuilt(Counter counter) {
+        if (!counter.eventStream.isEmpty()) counter.eventStream.clear();
+        return counter;
+    }
 }
@@ -0,0 +1,241 @@
+package daggerok.domain;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import daggerok.eventstore.CatchUpSubscription;
+import daggerok.eventstore.EventStore;
+import daggerok.eventstore.RecordedEvent;
+import daggerok.eventstore.events.CounterCreated;
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.CounterSuspended;
+import daggerok.eventstore.events.DomainEvent;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory read models of counters, maintained incrementally: single {@link CatchUpSubscription} of $all stream
+ * (started from the very first event right after CDI container is initialized) applies every appended event once, so
+ * queries never replay aggregates:
+ * - counters by suspended flag: O(1)
+ * - total incremented value per user (by): O(1) per user
+ * - top N counters by value: leaderboard kept in concurrent skip list, O(log n + N)
+ * - counter summaries used to filter aggregate catalog: by name prefix, suspended flag and creation time
+ * <p>
+ * Read models are eventually consistent: event is visible in projections shortly after it was appended, and
+ * projections are not complete until subscription has caught up with the history (see {@link #isLive()}). After
+ * {@link EventStore#cleanupAll()} read models are cleared and projected again from the first event of new history.
+ * <p>
+ * Configuration:
+ * - eventStore.projections.enabled
+ */
+@Log4j2
+@ApplicationScoped
+public class CounterProjections {
+
+    private static final Comparator<CounterSummary> BY_VALUE_DESC =
+            Comparator.comparingLong(CounterSummary::getCounter).reversed()
+                      .thenComparing(CounterSummary::getAggregateId);
+
+    private final ConcurrentMap<UUID, CounterSummary> counters = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<CounterSummary> leaderboard = new ConcurrentSkipListSet<>(BY_VALUE_DESC);
+    private final ConcurrentMap<String, LongAdder> totalsBy = new ConcurrentHashMap<>();
+    private final AtomicLong suspended = new AtomicLong();
+
+    private boolean enabled;
+    private EventStore eventStore;
+    private CatchUpSubscription subscription;
+
+    CounterProjections() {} // proxy...
+
+    @Inject
+    public CounterProjections(Map<String, String> config, EventStore eventStore) {
+        this(Boolean.parseBoolean(config.getOrDefault("eventStore.projections.enabled", "true")), eventStore);
+    }
+
+    public CounterProjections(boolean enabled, EventStore eventStore) {
+        this.enabled = enabled;
+        this.eventStore = eventStore;
+    }
+
+    private void on(@Observes @Initialized(ApplicationScoped.class) Object event) {
+        start();
+    }
+
+    public synchronized void start() {
+        if (!enabled || Objects.nonNull(subscription)) return;
+        subscription = eventStore.subscribe(0L, this::project, this::clear);
+        log.info("projecting counters from $all stream...");
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        Optional.ofNullable(subscription).ifPresent(CatchUpSubscription::close);
+    }
+
+    // n counters with highest values (ties are ordered by aggregateId)
+    public List<CounterSummary> top(int n) {
+        return leaderboard.stream()
+                          .limit(Math.max(0, n))
+                          .collect(Collectors.toList());
+    }
+
+    public Optional<CounterSummary> find(UUID aggregateId) {
+        return Optional.ofNullable(counters.get(aggregateId));
+    }
+
+    // filter of counters by projected state, every criterion is optional (null): name prefix, suspended flag and
+    // created at range (from inclusive, to exclusive), counters which are not projected yet only match no criteria
+    public Predicate<UUID> matching(String namePrefix, Boolean suspended,
+                                    ZonedDateTime createdFrom, ZonedDateTime createdTo) {
+        if (Stream.of(namePrefix, suspended, createdFrom, createdTo).allMatch(Objects::isNull)) return id -> true;
+        if (!enabled) throw new IllegalStateException("counters cannot be filtered: projections are disabled");
+        Predicate<CounterSummary> filter = summary -> true;
+        if (Objects.nonNull(namePrefix))
+            filter = filter.and(summary -> Objects.nonNull(summary.getName())
+                    && summary.getName().startsWith(namePrefix));
+        if (Objects.nonNull(suspended))
+            filter = filter.and(summary -> suspended == summary.isSuspended());
+        if (Objects.nonNull(createdFrom))
+            filter = filter.and(summary -> Objects.nonNull(summary.getCreatedAt())
+                    && !summary.getCreatedAt().isBefore(createdFrom));
+        if (Objects.nonNull(createdTo))
+            filter = filter.and(summary -> Objects.nonNull(summary.getCreatedAt())
+                    && summary.getCreatedAt().isBefore(createdTo));
+        Predicate<CounterSummary> matches = filter;
+        return aggregateId -> find(aggregateId).filter(matches).isPresent();
+    }
+
+    public long getCounters() {
+        return counters.size();
+    }
+
+    public long getSuspended() {
+        return suspended.get();
+    }
+
+    public long getActive() {
+        return counters.size() - suspended.get();
+    }
+
+    public long getTotalBy(String by) {
+        return Optional.ofNullable(totalsBy.get(by)).map(LongAdder::sum).orElse(0L);
+    }
+
+    // totals per user, sorted by user
+    public Map<String, Long> getTotalsBy() {
+        Map<String, Long> totals = new TreeMap<>();
+        totalsBy.forEach((by, total) -> totals.put(by, total.sum()));
+        return Collections.unmodifiableMap(totals);
+    }
+
+    // position of next event to be projected
+    public long getPosition() {
+        return Optional.ofNullable(subscription).map(CatchUpSubscription::getPosition).orElse(0L);
+    }
+
+    // true when projections have caught up with history and are following live events
+    public boolean isLive() {
+        return Optional.ofNullable(subscription).map(CatchUpSubscription::isLive).orElse(false);
+    }
+
+    /* Private API */
+
+    // runs on subscription thread only, in position order, so every aggregate summary has single writer
+    // plain type dispatch (most frequent event first), other events are not projected
+    private void project(RecordedEvent recordedEvent) {
+        DomainEvent domainEvent = recordedEvent.getEvent();
+        if (domainEvent instanceof CounterIncremented) on((CounterIncremented) domainEvent);
+        else if (domainEvent instanceof CounterCreated) on((CounterCreated) domainEvent);
+        else if (domainEvent instanceof CounterSuspended) on((CounterSuspended) domainEvent);
+    }
+
+    // runs on subscription thread too, right before it starts over from the first event after cleanup
+    private void clear() {
+        counters.clear();
+        leaderboard.clear();
+        totalsBy.clear();
+        suspended.set(0);
+        log.info("events are cleaned up, projecting counters from $all stream again...");
+    }
+
+    private void on(CounterCreated event) {
+        UUID aggregateId = event.getAggregateId();
+        CounterSummary current = counters.get(aggregateId);
+        boolean wasSuspended = Objects.nonNull(current) && current.isSuspended();
+        replace(current, new CounterSummary(aggregateId, event.getCounterName(), event.getAt(), 0L, false));
+        if (wasSuspended) suspended.decrementAndGet();
+    }
+
+    private void on(CounterIncremented event) {
+        CounterSummary current = summaryOf(event.getAggregateId());
+        replace(current, new CounterSummary(current.getAggregateId(), current.getName(), current.getCreatedAt(),
+                                            current.getCounter() + event.getWithValue(), current.isSuspended()));
+        totalsBy.computeIfAbsent(event.getBy(), by -> new LongAdder()).add(event.getWithValue());
+    }
+
+    private void on(CounterSuspended event) {
+        CounterSummary current = summaryOf(event.getAggregateId());
+        if (current.isSuspended()) return;
+        replace(current, new CounterSummary(current.getAggregateId(), current.getName(), current.getCreatedAt(),
+                                            current.getCounter(), true));
+        suspended.incrementAndGet();
+    }
+
+    // events of counter which creation was never recorded are still projected (unnamed)
+    private CounterSummary summaryOf(UUID aggregateId) {
+        return Optional.ofNullable(counters.get(aggregateId))
+                       .orElseGet(() -> new CounterSummary(aggregateId, null, null, 0L, false));
+    }
+
+    // summaries are immutable: leaderboard entry is re-inserted on every change, so it's ordered by actual value
+    // (new entry is added before old one is removed, so readers never miss the counter while its value is changing)
+    private void replace(CounterSummary current, CounterSummary updated) {
+        counters.put(updated.getAggregateId(), updated);
+        if (Objects.nonNull(current) && BY_VALUE_DESC.compare(current, updated) == 0) {
+            leaderboard.remove(current);
+            leaderboard.add(updated);
+            return;
+        }
+        leaderboard.add(updated);
+        if (Objects.nonNull(current)) leaderboard.remove(current);
+    }
+
+    @Value
+    public static class CounterSummary {
+
+        private final UUID aggregateId;
+
+        @JsonInclude(JsonInclude.Include.NON_EMPTY)
+        private final String name;
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+        private final ZonedDateTime createdAt;
+
+        private final long counter;
+        private final boolean suspended;
+    }
+}
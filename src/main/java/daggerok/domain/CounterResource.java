@@ -4,20 +4,31 @@ import daggerok.eventstore.EventStore;
 import daggerok.eventstore.events.CounterCreated;
 import daggerok.eventstore.events.CounterIncremented;
 import daggerok.eventstore.events.CounterSuspended;
-import daggerok.eventstore.events.DomainEvent;
+import daggerok.infrastructure.AsyncResponses;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
 import javax.json.Json;
+import javax.json.JsonObjectBuilder;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import java.net.URI;
-import java.util.Collection;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
@@ -32,62 +43,121 @@ public class CounterResource {
     @Context
     private UriInfo uriInfo;
     private EventStore eventStore;
+    private CounterProjections counterProjections;
 
+    // page of counters sorted by aggregateId, next is aggregateId to continue after (absent on the last page)
+    // optional filters: name prefix, suspended flag and created at range (ISO date-time, from inclusive, to exclusive)
+    // are served from projections, so filtered page is 503 Service Unavailable until projections are live (it would
+    // silently miss counters which are not projected yet)
     @GET
-    public Response findAll() {
-        return Response.ok(eventStore.findAll())
+    public Response findAll(@QueryParam("after") UUID after,
+                            @QueryParam("limit") @DefaultValue("100") int limit,
+                            @QueryParam("name") String namePrefix,
+                            @QueryParam("suspended") Boolean suspended,
+                            @QueryParam("createdFrom") String createdFrom,
+                            @QueryParam("createdTo") String createdTo) {
+        if (limit < 1 || limit > 1000) throw new IllegalArgumentException("limit must be between 1 and 1000");
+        Predicate<UUID> filter = counterProjections.matching(namePrefix, suspended,
+                                                             parseDateTime(createdFrom), parseDateTime(createdTo));
+        boolean filtered = Stream.of(namePrefix, suspended, createdFrom, createdTo).anyMatch(Objects::nonNull);
+        if (filtered && !counterProjections.isLive()) throw new ServiceUnavailableException(String.format(
+                "counters cannot be filtered yet: projections are catching up (position %d of %d)",
+                counterProjections.getPosition(), eventStore.position()));
+        List<UUID> aggregateIds = eventStore.findAll(after, limit, filter);
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("aggregateIds", aggregateIds);
+        if (aggregateIds.size() == limit) page.put("next", aggregateIds.get(limit - 1));
+        return Response.ok(page)
                        .build();
     }
 
+    // leaderboard: n counters with highest values, served from projections (no aggregates are rebuilt)
     @GET
-    @Path("{aggregateId}")
-    public Response find(@PathParam("aggregateId") UUID aggregateId) {
-        Collection<DomainEvent> history = eventStore.read(aggregateId);
-        return Response.ok(Counter.rebuild(new Counter(), history))
+    @Path("top")
+    public Response top(@QueryParam("n") @DefaultValue("10") int n) {
+        if (n < 1 || n > 1000) throw new IllegalArgumentException("n must be between 1 and 1000");
+        return Response.ok(counterProjections.top(n))
+                       .build();
+    }
+
+    @GET
+    @Path("stats")
+    public Response stats() {
+        JsonObjectBuilder totalsBy = Json.createObjectBuilder();
+        counterProjections.getTotalsBy().forEach(totalsBy::add);
+        return Response.ok(Json.createObjectBuilder()
+                               .add("counters", counterProjections.getCounters())
+                               .add("active", counterProjections.getActive())
+                               .add("suspended", counterProjections.getSuspended())
+                               .add("totalsBy", totalsBy.build())
+                               .add("position", counterProjections.getPosition())
+                               .add("live", counterProjections.isLive())
+                               .build())
                        .build();
     }
 
+    @GET
+    @Path("{aggregateId}")
+    public void find(@PathParam("aggregateId") UUID aggregateId, @Suspended AsyncResponse asyncResponse) {
+        AsyncResponses.resume(asyncResponse, eventStore.loadAggregateAsync(aggregateId).thenApply(
+                counter -> Response.ok(counter)
+                                   .build()));
+    }
+
     @POST
-    public Response createCounter(CounterCreated cmd) {
+    public void createCounter(CounterCreated cmd, @Suspended AsyncResponse asyncResponse) {
 
         Counter counter = new Counter();
         counter.create(cmd.getAggregateId(), cmd.getCounterName());
-        eventStore.snapshot(counter);
 
+        // request scoped uriInfo is only available on request thread
         URI url = uriInfo.getBaseUriBuilder()
                          .path(CounterResource.class)
                          .path(CounterResource.class, "find")
                          .build(counter.getAggregateId());
         String result = String.format("%s counter created: %s", cmd.getCounterName(), url);
 
-        return Response.created(url)
-                       .entity(Json.createObjectBuilder()
-                                   .add("result", result)
-                                   .build())
-                       .build();
+        AsyncResponses.resume(asyncResponse, eventStore.saveAsync(counter).thenApply(
+                saved -> Response.created(url)
+                                 .entity(Json.createObjectBuilder()
+                                             .add("result", result)
+                                             .build())
+                                 .build()));
     }
 
     @PUT
-    public Response incrementCounter(CounterIncremented cmd) {
-
-        Counter counter = Counter.rebuild(new Counter(), eventStore.read(cmd.getAggregateId()));
-        counter.increment(cmd.getBy(), cmd.getWithValue());
-        eventStore.snapshot(counter);
-
-        return Response.accepted()
-                       .entity(counter)
-                       .build();
+    public void incrementCounter(CounterIncremented cmd, @Suspended AsyncResponse asyncResponse) {
+
+        CompletionStage<Counter> incremented = eventStore.loadAggregateAsync(cmd.getAggregateId())
+                                                         .thenCompose(counter -> {
+                                                             counter.increment(cmd.getBy(), cmd.getWithValue());
+                                                             return eventStore.saveAsync(counter);
+                                                         });
+
+        AsyncResponses.resume(asyncResponse, incremented.thenApply(
+                counter -> Response.accepted()
+                                   .entity(counter)
+                                   .build()));
     }
 
     @DELETE
-    public Response suspendedCounter(CounterSuspended cmd) {
-
-        Counter counter = Counter.rebuild(new Counter(), eventStore.read(cmd.getAggregateId()));
-        counter.suspend(cmd.getBy(), cmd.getReason());
-        eventStore.snapshot(counter);
+    public void suspendedCounter(CounterSuspended cmd, @Suspended AsyncResponse asyncResponse) {
+
+        CompletionStage<Counter> suspended = eventStore.loadAggregateAsync(cmd.getAggregateId())
+                                                       .thenCompose(counter -> {
+                                                           counter.suspend(cmd.getBy(), cmd.getReason());
+                                                           return eventStore.saveAsync(counter);
+                                                       });
+
+        AsyncResponses.resume(asyncResponse, suspended.thenApply(
+                counter -> Response.accepted()
+                                   .entity(counter)
+                                   .build()));
+    }
 
-        return Response.accepted()
-                       .entity(counter)
-                       .build();
+    private static ZonedDateTime parseDateTime(String dateTime) {
+        return Optional.ofNullable(dateTime)
+                       .map(ZonedDateTime::parse)
+                       .orElse(null);
     }
 }
@@ -0,0 +1,100 @@
+package daggerok.eventstore;
+
+import daggerok.domain.Counter;
+import daggerok.eventstore.events.DomainEvent;
+import lombok.extern.log4j.Log4j2;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of hot aggregates in front of {@link EventStore}.
+ * <p>
+ * Cached instances are never shared: get returns a copy, put stores a copy, so commands applied by callers to loaded
+ * aggregates do not leak into cache until corresponding events are appended into event store.
+ * <p>
+ * Configuration: eventStore.cache.maxSize (amount of aggregates to keep in memory, 0 disables cache)
+ */
+@Log4j2
+@ApplicationScoped
+public class AggregateCache {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private int maxSize;
+    private Map<UUID, Counter> aggregates;
+
+    AggregateCache() {} // proxy...
+
+    @Inject
+    public AggregateCache(Map<String, String> config) {
+        this(Integer.parseInt(config.getOrDefault("eventStore.cache.maxSize", "10000")));
+    }
+
+    public AggregateCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.aggregates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Counter> eldest) {
+                if (size() <= AggregateCache.this.maxSize) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    public synchronized Optional<Counter> get(UUID aggregateId) {
+        Counter counter = aggregates.get(aggregateId);
+        if (Objects.isNull(counter)) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(counter.copy());
+    }
+
+    public synchronized void put(Counter aggregate) {
+        if (maxSize < 1 || Objects.isNull(aggregate.getAggregateId())) return;
+        aggregates.put(aggregate.getAggregateId(), aggregate.copy());
+    }
+
+    // keep cached aggregate in sync with appended event, if it's hot enough to be cached
+    public synchronized void apply(DomainEvent domainEvent) {
+        aggregates.computeIfPresent(domainEvent.getAggregateId(), (aggregateId, counter) -> counter.replay(domainEvent));
+    }
+
+    public synchronized void invalidate(UUID aggregateId) {
+        aggregates.remove(aggregateId);
+    }
+
+    public synchronized void invalidateAll() {
+        log.debug("invalidating {} cached aggregates", aggregates.size());
+        aggregates.clear();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /* Statistics */
+
+    public synchronized int size() {
+        return aggregates.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
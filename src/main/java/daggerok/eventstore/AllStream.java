@@ -0,0 +1,462 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.DomainEvent;
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * $all stream: global append order of events of all aggregates, no matter which {@link StorageEngine} is used.
+ * <p>
+ * Every appended event gets next global position, on disk it's an append only all.index file with fixed size entries
+ * (entry of event at position N is at N * ENTRY_SIZE offset):
+ * [long aggregateId msb][long aggregateId lsb][long event number within aggregate + 1 (1 - first aggregate event)]
+ * events themselves are stored by storage engine only, so $all stream is read by resolving entries through it.
+ * Zero filled entry is never valid one (even of nil UUID aggregate), it's a hole: position without event.
+ * <p>
+ * Entries are written right after storage engine append (under the same aggregate lock), so they may only lag behind
+ * storage engine. If all.index wasn't closed cleanly (all.index.clean marker is missing), missing entries are
+ * recovered on open by comparing aggregate versions of storage engine with entries: missing events are appended to
+ * the end of $all stream.
+ * <p>
+ * Only positions are assigned (and then committed) one append at a time, entries of unrelated aggregates are written
+ * concurrently. So crash may leave holes in front of the last written entry. Entries which failed to be written are
+ * holes too: their events are already stored, so append itself doesn't fail, but $all stream is dirty from now on and
+ * clean marker is not created on close. Readers skip holes, and their events are recovered as missing ones.
+ * Entries of every aggregate are kept in event number order: if recovered event is in front of recorded ones, they
+ * are turned into holes and recorded again after it.
+ * <p>
+ * To not check every aggregate on recovery, checkpoint is taken every checkpointMillis: while no aggregate is being
+ * appended, $all stream size and storage engine append mark are taken, entries in front of that size are forced to
+ * disk, and both are saved into all.index.checkpoint file. Only aggregates recorded after checkpoint size or appended
+ * to storage engine after its mark may miss entries, and all.index is only scanned back until their latest entries
+ * in front of checkpoint are found. Checkpoint is not taken once any entry has failed.
+ * <p>
+ * Just recorded events are published into {@link LiveEvents} ring buffer, so live subscribers are not reading them
+ * back from disk, see {@link CatchUpSubscription}.
+ * <p>
+ * Configuration:
+ * - eventStore.all.liveEvents (capacity of live events ring buffer, 8192 by default)
+ * - eventStore.all.checkpointMillis (0 disables checkpoints, 5000 by default)
+ */
+@Log4j2
+public class AllStream {
+
+    public static final int DEFAULT_LIVE_EVENTS = 8192;
+    public static final long DEFAULT_CHECKPOINT_MILLIS = 5000;
+
+    static final String FILENAME = "all.index";
+    static final String CLEAN_SHUTDOWN = "all.index.clean";
+    static final String CHECKPOINT = "all.index.checkpoint";
+    static final int ENTRY_SIZE = Long.BYTES + Long.BYTES + Long.BYTES;
+
+    private static final int ENTRIES_PER_READ = 4096;
+
+    private final Path indexPath;
+    private final Path cleanShutdownPath;
+    private final Path checkpointPath;
+    private final LiveEvents<RecordedEvent> liveEvents;
+    private final long checkpointMillis;
+
+    private final Object committed = new Object();
+
+    private FileChannel channel;
+    private volatile boolean dirty; // some entries failed to be written, they must be recovered on next open
+    private long reserved; // position of the next recorded event, guarded by this
+    private volatile long size; // amount of committed events: they are written and published, guarded by committed
+    private long cleanups; // checkpoint taken before cleanup is never saved, guarded by this
+    private volatile long checkpointed = -1; // size of the latest saved checkpoint
+    private volatile ScheduledExecutorService checkpoints;
+
+    public AllStream(Path dbBasePath, int liveEvents) {
+        this(dbBasePath, liveEvents, DEFAULT_CHECKPOINT_MILLIS);
+    }
+
+    public AllStream(Path dbBasePath, int liveEvents, long checkpointMillis) {
+        this.indexPath = Optional.ofNullable(dbBasePath)
+                                 .map(path -> path.toAbsolutePath().resolve(FILENAME))
+                                 .orElse(null);
+        this.cleanShutdownPath = Optional.ofNullable(dbBasePath)
+                                         .map(path -> path.toAbsolutePath().resolve(CLEAN_SHUTDOWN))
+                                         .orElse(null);
+        this.checkpointPath = Optional.ofNullable(dbBasePath)
+                                      .map(path -> path.toAbsolutePath().resolve(CHECKPOINT))
+                                      .orElse(null);
+        this.liveEvents = new LiveEvents<>(liveEvents, 0L, RecordedEvent::getPosition);
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    // $all stream which is never recorded, so it cannot be read or subscribed to
+    public static AllStream disabled() {
+        return new AllStream(null, 1);
+    }
+
+    public boolean isEnabled() {
+        return Objects.nonNull(indexPath);
+    }
+
+    // returns false if it wasn't closed cleanly, so it may miss some tail events, which must be recovered
+    synchronized boolean open() {
+        if (!isEnabled()) return true;
+        // missing all.index is never clean: it may be new one of already existing store, or it was just lost
+        boolean clean = Try.of(() -> Files.createDirectories(indexPath.getParent()))
+                           .mapTry(ignored -> Files.deleteIfExists(cleanShutdownPath))
+                           .getOrElseThrow(AllStream::reThrow) && Files.exists(indexPath);
+        channel = Try.of(() -> FileChannel.open(indexPath, CREATE, READ, WRITE))
+                     .getOrElseThrow(AllStream::reThrow);
+        long entries = Try.of(channel::size).getOrElseThrow(AllStream::reThrow) / ENTRY_SIZE;
+        Try.run(() -> channel.truncate(entries * ENTRY_SIZE)).getOrElseThrow(AllStream::reThrow);
+        size = entries;
+        reserved = entries;
+        dirty = false;
+        checkpointed = -1;
+        liveEvents.reset(size);
+        log.debug("opened $all stream of {} events (clean: {})", size, clean);
+        return clean;
+    }
+
+    // append entries of storage engine events which are not recorded yet, aggregates to check are:
+    // - with valid checkpoint: only ones recorded after it or appended to storage engine after its mark
+    // - otherwise: all of them (whole all.index is scanned, checkpoint is dropped)
+    synchronized void recover(Collection<UUID> aggregateIds, LongFunction<Collection<UUID>> appendedSince,
+                              ToLongFunction<UUID> versionOf) {
+        Optional<Checkpoint> checkpoint = readCheckpoint();
+        if (!checkpoint.isPresent()) Try.run(() -> Files.deleteIfExists(checkpointPath))
+                                        .getOrElseThrow(AllStream::reThrow);
+        Map<UUID, Recorded> recorded = checkpoint.map(from -> recordedSince(from, appendedSince))
+                                                 .orElseGet(() -> recorded(aggregateIds));
+        long recovered = 0;
+        for (Map.Entry<UUID, Recorded> aggregate : recorded.entrySet()) {
+            UUID aggregateId = aggregate.getKey();
+            recovered += recover(aggregateId, aggregate.getValue(), versionOf.applyAsLong(aggregateId));
+        }
+        reserved = size;
+        liveEvents.reset(size);
+        log.info("$all stream recovered {} events of {} checked aggregates", recovered, recorded.size());
+    }
+
+    // take checkpoint in background every checkpointMillis if anything was recorded since the previous one, given
+    // action must take it consistently, see checkpointAt
+    synchronized void startCheckpoints(Runnable checkpoint) {
+        if (!isEnabled() || checkpointMillis <= 0 || Objects.nonNull(checkpoints)) return;
+        checkpoints = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "all-stream-checkpoints");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpoints.scheduleWithFixedDelay(() -> {
+            if (size != checkpointed) Try.run(checkpoint::run)
+                                         .onFailure(e -> log.warn("$all stream checkpoint failed: {}",
+                                                                  e.getLocalizedMessage()));
+        }, checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // current size with given storage engine append mark, must be called while no aggregate is being appended (under
+    // all aggregate locks): every event stored in front of the mark is recorded in front of the size then
+    synchronized Checkpoint checkpointAt(long mark) {
+        return new Checkpoint(size, mark, cleanups);
+    }
+
+    // entries in front of checkpoint size are forced to disk before checkpoint is saved (without holding this lock, so
+    // appends are not waiting for it), checkpoint is never saved if $all stream is dirty or was cleaned up meanwhile
+    void checkpoint(Checkpoint checkpoint) {
+        if (!isEnabled() || dirty || checkpoint.size == checkpointed) return;
+        Path saving = checkpointPath.resolveSibling(CHECKPOINT + ".tmp");
+        Try.run(() -> channel.force(false))
+           .andThenTry(() -> {
+               try (FileChannel file = FileChannel.open(saving, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                   ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + Long.BYTES)
+                                                 .putLong(checkpoint.size)
+                                                 .putLong(checkpoint.mark);
+                   buffer.flip();
+                   while (buffer.hasRemaining()) file.write(buffer);
+                   file.force(false);
+               }
+           })
+           .andThenTry(() -> {
+               synchronized (this) {
+                   if (dirty || checkpoint.cleanups != cleanups) return;
+                   Files.move(saving, checkpointPath, ATOMIC_MOVE, REPLACE_EXISTING);
+                   checkpointed = checkpoint.size;
+               }
+           })
+           .getOrElseThrow(AllStream::reThrow);
+        log.debug("$all stream checkpoint at {}", checkpoint.size);
+    }
+
+    // record events just appended to aggregate starting from given aggregate version and publish them for live
+    // subscribers, must be called under aggregate lock, right after events are stored
+    // step 1: reserve positions (the only section all appends are going through one by one)
+    // step 2: write entries at their positions, concurrently with appends of other aggregates
+    // step 3: commit them in position order: wait for entries reserved earlier, publish and make them readable
+    void record(UUID aggregateId, long fromVersion, List<DomainEvent> domainEvents) {
+        if (!isEnabled() || domainEvents.isEmpty()) return;
+        int count = domainEvents.size();
+        long position;
+        synchronized (this) {
+            position = reserved;
+            reserved += count;
+        }
+        // events are already stored, so failed entries are only left as holes to be recovered on next open
+        Try.run(() -> write(position, aggregateId, fromVersion, count))
+           .onFailure(e -> dirty = true)
+           .onFailure(e -> log.error("$all stream entries from {} to {} are not written, they will be recovered: {}",
+                                     position, position + count, e.getLocalizedMessage()));
+        // even failed entries are committed, otherwise appends reserved after them would wait forever
+        commit(position, count, i -> new RecordedEvent(position + i, aggregateId, fromVersion + i + 1,
+                                                       domainEvents.get(i)));
+    }
+
+    // positions, aggregate ids and event numbers of events of at most maxCount positions starting from given one
+    // (holes are skipped, so there may be less entries, even none)
+    List<Entry> entries(long fromPosition, int maxCount) {
+        requireEnabled();
+        long to = Math.min(size, fromPosition + maxCount);
+        List<Entry> entries = new ArrayList<>((int) Math.max(0, to - fromPosition));
+        forEachEntry(fromPosition, to, (position, aggregateId, number) -> entries.add(
+                new Entry(position, aggregateId, number)));
+        return entries;
+    }
+
+    long size() {
+        return size;
+    }
+
+    LiveEvents<RecordedEvent> liveEvents() {
+        requireEnabled();
+        return liveEvents;
+    }
+
+    synchronized void cleanup() {
+        if (!isEnabled()) return;
+        Try.run(() -> channel.truncate(0)).getOrElseThrow(AllStream::reThrow);
+        Try.run(() -> Files.deleteIfExists(checkpointPath)).getOrElseThrow(AllStream::reThrow);
+        size = 0;
+        reserved = 0;
+        dirty = false;
+        cleanups++;
+        checkpointed = -1;
+        liveEvents.reset(0);
+    }
+
+    // checkpoints are stopped first (without holding this lock, running one may be waiting for it), then entries are
+    // forced to disk before clean shutdown marker is created (it's not created if any entry has failed)
+    void close() {
+        Optional.ofNullable(checkpoints).ifPresent(executor -> {
+            executor.shutdownNow();
+            Try.run(() -> executor.awaitTermination(10, TimeUnit.SECONDS))
+               .onFailure(e -> log.warn("interrupted while waiting for $all stream checkpoint"));
+        });
+        checkpoints = null;
+        synchronized (this) {
+            if (!isEnabled() || Objects.isNull(channel) || !channel.isOpen()) return;
+            Try.run(() -> channel.force(false))
+               .andThenTry(channel::close)
+               .andThenTry(() -> {
+                   if (dirty) throw new IllegalStateException("some entries were not written");
+                   Files.createFile(cleanShutdownPath);
+               })
+               .onFailure(e -> log.warn("$all stream wasn't closed cleanly: {}", e.getLocalizedMessage()));
+        }
+    }
+
+    /* Private API */
+
+    // positional writes of different positions are not overlapping, so they may run concurrently
+    // valid checkpoint saved by previous run, if any
+    private Optional<Checkpoint> readCheckpoint() {
+        if (Files.notExists(checkpointPath)) return Optional.empty();
+        return Try.of(() -> ByteBuffer.wrap(Files.readAllBytes(checkpointPath)))
+                  .filter(buffer -> buffer.remaining() == Long.BYTES + Long.BYTES)
+                  .map(buffer -> new Checkpoint(buffer.getLong(), buffer.getLong(), cleanups))
+                  .filter(checkpoint -> checkpoint.size >= 0 && checkpoint.size <= size)
+                  .onFailure(e -> log.warn("ignoring $all stream checkpoint: {}", e.getLocalizedMessage()))
+                  .toJavaOptional();
+    }
+
+    // step 1: count recorded events of each aggregate and find the latest one (number of recorded events if no holes)
+    // step 2: positions of recorded events are collected, but only of aggregates with holes in front of the latest one
+    private Map<UUID, Recorded> recorded(Collection<UUID> aggregateIds) {
+        Map<UUID, long[]> counted = new HashMap<>(); // [recorded events, latest recorded number + 1]
+        forEachEntry(0L, size, (position, aggregateId, number) -> {
+            long[] events = counted.computeIfAbsent(aggregateId, id -> new long[2]);
+            events[0]++;
+            events[1] = Math.max(events[1], number + 1);
+        });
+        Map<UUID, Recorded> recorded = new HashMap<>();
+        aggregateIds.forEach(aggregateId -> recorded.put(aggregateId, new Recorded()));
+        Map<UUID, Recorded> holes = new HashMap<>();
+        counted.forEach((aggregateId, events) -> {
+            Recorded aggregate = recorded.computeIfAbsent(aggregateId, id -> new Recorded());
+            if (events[0] == events[1]) aggregate.from = events[1];
+            else holes.put(aggregateId, aggregate);
+        });
+        if (!holes.isEmpty()) forEachEntry(0L, size, (position, aggregateId, number) -> Optional
+                .ofNullable(holes.get(aggregateId))
+                .ifPresent(aggregate -> aggregate.positions.put(number, position)));
+        return recorded;
+    }
+
+    // step 1: find aggregates recorded after checkpoint size (but events of lost entries are not known by them)
+    // step 2: plus ones appended to storage engine after checkpoint mark
+    // step 3: scan all.index backwards collecting their entries, until entry in front of checkpoint size is found
+    // (entries are complete there, so its number is the latest recorded one) or until their first event is found
+    private Map<UUID, Recorded> recordedSince(Checkpoint checkpoint, LongFunction<Collection<UUID>> appendedSince) {
+        Map<UUID, Recorded> recorded = new HashMap<>();
+        forEachEntry(checkpoint.size, size, (position, aggregateId, number) -> recorded.computeIfAbsent(
+                aggregateId, id -> new Recorded()));
+        appendedSince.apply(checkpoint.mark).forEach(aggregateId -> recorded.computeIfAbsent(
+                aggregateId, id -> new Recorded()));
+        Set<UUID> unresolved = new HashSet<>(recorded.keySet());
+        for (long to = size; to > 0 && !unresolved.isEmpty(); to -= ENTRIES_PER_READ) {
+            List<Entry> entries = entries(Math.max(0L, to - ENTRIES_PER_READ), ENTRIES_PER_READ);
+            for (int i = entries.size() - 1; i >= 0 && !unresolved.isEmpty(); i--) {
+                Entry entry = entries.get(i);
+                if (entry.position >= to || !unresolved.contains(entry.aggregateId)) continue;
+                Recorded aggregate = recorded.get(entry.aggregateId);
+                if (entry.position < checkpoint.size) aggregate.from = entry.number + 1;
+                else aggregate.positions.put(entry.number, entry.position);
+                if (entry.position < checkpoint.size || entry.number == 0) unresolved.remove(entry.aggregateId);
+            }
+        }
+        log.info("recovering $all stream from checkpoint at {} of {}", checkpoint.size, size);
+        return recorded;
+    }
+
+    // entries of events after the first missing one are turned into holes, and all of them are recorded in order
+    private long recover(UUID aggregateId, Recorded recorded, long version) {
+        long missing = recorded.from;
+        while (recorded.positions.containsKey(missing)) missing++;
+        long latest = recorded.positions.isEmpty() ? recorded.from : recorded.positions.lastKey() + 1;
+        if (version < latest) log.warn("$all stream has {} events of {}, but only {} are stored",
+                                       latest, aggregateId, version);
+        if (missing >= version) return 0;
+        for (long position : recorded.positions.tailMap(missing).values()) {
+            ByteBuffer hole = ByteBuffer.allocate(ENTRY_SIZE);
+            Try.run(() -> {
+                while (hole.hasRemaining()) channel.write(hole, position * ENTRY_SIZE + hole.position());
+            }).getOrElseThrow(AllStream::reThrow);
+        }
+        write(size, aggregateId, missing, Math.toIntExact(version - missing));
+        size += version - missing;
+        return version - missing;
+    }
+
+    private void write(long position, UUID aggregateId, long fromNumber, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * count);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(aggregateId.getMostSignificantBits())
+                  .putLong(aggregateId.getLeastSignificantBits())
+                  .putLong(fromNumber + i + 1);
+        }
+        buffer.flip();
+        long offset = position * ENTRY_SIZE;
+        Try.run(() -> {
+            while (buffer.hasRemaining()) channel.write(buffer, offset + buffer.position());
+        }).getOrElseThrow(AllStream::reThrow);
+    }
+
+    // waiting for earlier positions is short: they are already reserved, so their entries are being written right now
+    private void commit(long position, int count, IntFunction<RecordedEvent> recordedEvent) {
+        boolean interrupted = false;
+        synchronized (committed) {
+            while (size != position) {
+                try {
+                    committed.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            for (int i = 0; i < count; i++) liveEvents.publish(recordedEvent.apply(i));
+            size = position + count;
+            committed.notifyAll();
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // entries are read by batches of up to ENTRIES_PER_READ entries, holes are skipped
+    private void forEachEntry(long from, long to, EntryConsumer consumer) {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * (int) Math.min(ENTRIES_PER_READ, Math.max(1, to - from)));
+        for (long position = from; position < to; ) {
+            int count = (int) Math.min(buffer.capacity() / ENTRY_SIZE, to - position);
+            buffer.clear().limit(count * ENTRY_SIZE);
+            long offset = position * ENTRY_SIZE;
+            Try.run(() -> {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0)
+                        throw new IllegalStateException("unexpected end of $all stream at " + offset);
+                }
+            }).getOrElseThrow(AllStream::reThrow);
+            buffer.flip();
+            for (int i = 0; i < count; i++) {
+                UUID aggregateId = new UUID(buffer.getLong(), buffer.getLong());
+                long number = buffer.getLong() - 1;
+                if (number >= 0) consumer.accept(position + i, aggregateId, number);
+            }
+            position += count;
+        }
+    }
+
+    private void requireEnabled() {
+        if (!isEnabled()) throw new IllegalStateException("$all stream is disabled");
+    }
+
+    private static RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+
+    private interface EntryConsumer {
+        void accept(long position, UUID aggregateId, long number);
+    }
+
+    // $all stream size and storage engine append mark taken while no aggregate was being appended
+    static class Checkpoint {
+
+        final long size;
+        final long mark;
+        private final long cleanups;
+
+        private Checkpoint(long size, long mark, long cleanups) {
+            this.size = size;
+            this.mark = mark;
+            this.cleanups = cleanups;
+        }
+    }
+
+    // recorded events of aggregate: all numbers in front of from, and the ones after it at their positions
+    private static class Recorded {
+
+        private final NavigableMap<Long, Long> positions = new TreeMap<>();
+        private long from;
+    }
+
+    // event number of aggregate recorded at given position of $all stream
+    static class Entry {
+
+        final long position;
+        final UUID aggregateId;
+        final long number;
+
+        Entry(long position, UUID aggregateId, long number) {
+            this.position = position;
+            this.aggregateId = aggregateId;
+            this.number = number;
+        }
+    }
+}
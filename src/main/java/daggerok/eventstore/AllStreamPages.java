@@ -0,0 +1,145 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.DomainEvent;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Pages of $all stream resolved through storage engine for single sequential reader (page by page, like catch-up
+ * subscription): every aggregate of a page is read only once and its events are cut out in memory.
+ * <p>
+ * Record streams of aggregates with most events in a page (up to MAX_CURSORS of them) are kept open until next page,
+ * so history of hot aggregate is read on and on from where previous page has stopped, instead of being read again
+ * from its beginning on every page (file engine can only skip records up to requested version, unless snapshot is
+ * right there). Record streams are opened under aggregate read lock, but consumed without it, see
+ * {@link StorageEngine#read(UUID, long)}: stream which has reached aggregate version it was opened at is reopened.
+ * <p>
+ * It's not thread safe.
+ */
+class AllStreamPages implements Closeable {
+
+    static final int MAX_CURSORS = 64;
+
+    private final AllStream allStream;
+    private final StripedLocks locks;
+    private final StorageEngine storageEngine;
+    private final EventCodec eventCodec;
+    private final Map<UUID, Cursor> cursors = new HashMap<>();
+
+    private long end; // position right after the last one of previous page
+
+    AllStreamPages(AllStream allStream, StripedLocks locks, StorageEngine storageEngine, EventCodec eventCodec) {
+        this.allStream = allStream;
+        this.locks = locks;
+        this.storageEngine = storageEngine;
+        this.eventCodec = eventCodec;
+    }
+
+    // step 1: read $all stream entries (aggregateId + event number) of requested page, holes are skipped
+    // step 2: read events of each aggregate once (continuing its cursor of previous page, if it's still open)
+    // step 3: put them back into global order
+    List<RecordedEvent> read(long fromPosition, int maxCount) {
+        long to = Math.max(fromPosition, Math.min(allStream.size(), fromPosition + maxCount));
+        List<AllStream.Entry> entries = allStream.entries(fromPosition, (int) (to - fromPosition));
+        end = to;
+        Map<UUID, long[]> ranges = new LinkedHashMap<>();
+        for (AllStream.Entry entry : entries) {
+            long[] range = ranges.computeIfAbsent(entry.aggregateId, id -> new long[] { entry.number, entry.number });
+            range[0] = Math.min(range[0], entry.number);
+            range[1] = Math.max(range[1], entry.number);
+        }
+        Set<UUID> hottest = ranges.entrySet()
+                                  .stream()
+                                  .sorted(Comparator.comparingLong(
+                                          (Map.Entry<UUID, long[]> range) -> range.getValue()[0] - range.getValue()[1]))
+                                  .limit(MAX_CURSORS)
+                                  .map(Map.Entry::getKey)
+                                  .collect(Collectors.toSet());
+        new ArrayList<>(cursors.keySet()).stream()
+                                         .filter(aggregateId -> !hottest.contains(aggregateId))
+                                         .forEach(aggregateId -> cursors.remove(aggregateId).close());
+        Map<UUID, List<DomainEvent>> events = new HashMap<>();
+        ranges.forEach((aggregateId, range) -> {
+            events.put(aggregateId, read(aggregateId, range[0], (int) (range[1] - range[0] + 1)));
+            if (!hottest.contains(aggregateId)) cursors.remove(aggregateId).close();
+        });
+        List<RecordedEvent> recordedEvents = new ArrayList<>(entries.size());
+        for (AllStream.Entry entry : entries) {
+            List<DomainEvent> aggregateEvents = events.get(entry.aggregateId);
+            int index = (int) (entry.number - ranges.get(entry.aggregateId)[0]);
+            // aggregate may be cleaned up meanwhile
+            if (index >= aggregateEvents.size()) continue;
+            recordedEvents.add(new RecordedEvent(entry.position, entry.aggregateId, entry.number + 1,
+                                                 aggregateEvents.get(index)));
+        }
+        return recordedEvents;
+    }
+
+    // page may have fewer events than positions (or even none), so next page should be read from here
+    long getEnd() {
+        return end;
+    }
+
+    // close all open record streams, pages still can be read afterwards
+    @Override
+    public void close() {
+        cursors.values().forEach(Cursor::close);
+        cursors.clear();
+    }
+
+    /* Private API */
+
+    // at most count events of aggregate starting from given version (fewer if aggregate doesn't have them)
+    private List<DomainEvent> read(UUID aggregateId, long fromVersion, int count) {
+        List<DomainEvent> events = new ArrayList<>(count);
+        Cursor cursor = cursors.remove(aggregateId);
+        if (Objects.nonNull(cursor)) {
+            // cursor cannot go back, and it ends at aggregate version it was opened at
+            if (cursor.version <= fromVersion) cursor.read(fromVersion, count, events);
+            if (events.size() < count) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+        if (Objects.isNull(cursor)) {
+            long version = fromVersion + events.size();
+            cursor = new Cursor(locks.read(aggregateId, () -> storageEngine.read(aggregateId, version)), version);
+            cursor.read(version, count - events.size(), events);
+        }
+        cursors.put(aggregateId, cursor);
+        return events;
+    }
+
+    private class Cursor implements Closeable {
+
+        private final Stream<byte[]> records;
+        private final Iterator<byte[]> iterator;
+
+        private long version; // version of the next record
+
+        private Cursor(Stream<byte[]> records, long version) {
+            this.records = records;
+            this.iterator = records.iterator();
+            this.version = version;
+        }
+
+        private void read(long fromVersion, int count, List<DomainEvent> events) {
+            while (version < fromVersion && iterator.hasNext()) {
+                iterator.next();
+                version++;
+            }
+            for (int i = 0; i < count && iterator.hasNext(); i++) {
+                events.add(eventCodec.decode(iterator.next()));
+                version++;
+            }
+        }
+
+        @Override
+        public void close() {
+            records.close();
+        }
+    }
+}
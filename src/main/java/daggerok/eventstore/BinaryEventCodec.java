@@ -0,0 +1,211 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.CounterCreated;
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.CounterSuspended;
+import daggerok.eventstore.events.DomainEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact binary event codec:
+ * [varint body length][body][int CRC32C of body]
+ * where body is:
+ * [byte type id][long aggregateId msb][long aggregateId lsb][varlong at epoch millis][type specific fields]
+ * - CounterCreated (1): [string counterName]
+ * - CounterIncremented (2): [string by][varlong withValue]
+ * - CounterSuspended (3): [string by][string reason]
+ * strings are [varint UTF-8 length + 1 (0 for null)][UTF-8 bytes], varlongs are zigzag encoded, so small negative
+ * numbers are short too. Timestamps are kept with millisecond precision and decoded in UTC, exactly like JSON codec
+ * round trip does.
+ * <p>
+ * Type ids are persisted: never reuse or reorder them, new event types must get new ids.
+ */
+public class BinaryEventCodec implements EventCodec {
+
+    private static final byte COUNTER_CREATED = 1;
+    private static final byte COUNTER_INCREMENTED = 2;
+    private static final byte COUNTER_SUSPENDED = 3;
+
+    // same zone as Jackson deserializer adjusts dates to (context time zone)
+    private static final ZoneId UTC = ZoneId.of("UTC");
+
+    private static final int INITIAL_BUFFER_SIZE = 128;
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+
+    @Override
+    public byte[] encode(DomainEvent domainEvent) {
+        Writer body = writers.get();
+        body.reset();
+        if (domainEvent instanceof CounterCreated) {
+            CounterCreated event = (CounterCreated) domainEvent;
+            body.header(COUNTER_CREATED, event.getAggregateId(), event.getAt());
+            body.string(event.getCounterName());
+        } else if (domainEvent instanceof CounterIncremented) {
+            CounterIncremented event = (CounterIncremented) domainEvent;
+            body.header(COUNTER_INCREMENTED, event.getAggregateId(), event.getAt());
+            body.string(event.getBy());
+            body.varlong(event.getWithValue());
+        } else if (domainEvent instanceof CounterSuspended) {
+            CounterSuspended event = (CounterSuspended) domainEvent;
+            body.header(COUNTER_SUSPENDED, event.getAggregateId(), event.getAt());
+            body.string(event.getBy());
+            body.string(event.getReason());
+        } else {
+            throw new IllegalArgumentException(
+                    String.format("event type is unknown: %s", domainEvent.getClass().getName()));
+        }
+        byte[] record = body.record();
+        if (record.length > MAX_POOLED_BUFFER_SIZE) writers.remove();
+        return record;
+    }
+
+    @Override
+    public DomainEvent decode(byte[] record) {
+        Reader body = new Reader(record);
+        byte type = body.buffer.get();
+        UUID aggregateId = new UUID(body.buffer.getLong(), body.buffer.getLong());
+        ZonedDateTime at = body.timestamp();
+        switch (type) {
+            case COUNTER_CREATED:
+                return new CounterCreated(aggregateId, body.string(), at);
+            case COUNTER_INCREMENTED:
+                return new CounterIncremented(aggregateId, body.string(), body.varlong(), at);
+            case COUNTER_SUSPENDED:
+                return new CounterSuspended(aggregateId, body.string(), body.string(), at);
+            default:
+                throw new IllegalStateException(String.format("unknown event type id: %d", type));
+        }
+    }
+
+    /* Private API */
+
+    private static class Writer extends ByteArrayOutputStream {
+
+        private Writer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        private void header(byte type, UUID aggregateId, ZonedDateTime at) {
+            Objects.requireNonNull(aggregateId, "aggregateId is required");
+            write(type);
+            fixedLong(aggregateId.getMostSignificantBits());
+            fixedLong(aggregateId.getLeastSignificantBits());
+            varlong(Objects.isNull(at) ? null : at.toInstant().toEpochMilli());
+        }
+
+        private void string(String value) {
+            if (Objects.isNull(value)) {
+                varint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            varint(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        // null is not distinguishable from 0 here: all our nullable numbers are defaulted by event constructors anyway
+        private void varlong(Long value) {
+            long zigzag = Objects.isNull(value) ? 0 : (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                write((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            write((int) zigzag);
+        }
+
+        private void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        private void fixedLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) write((int) (value >>> shift));
+        }
+
+        // [varint body length][body][int CRC32C of body]
+        private byte[] record() {
+            CRC32C crc = new CRC32C();
+            crc.update(buf, 0, count);
+            ByteBuffer record = ByteBuffer.allocate(varintSize(count) + count + Integer.BYTES);
+            int length = count;
+            while ((length & ~0x7F) != 0) {
+                record.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            record.put((byte) length);
+            record.put(buf, 0, count);
+            record.putInt((int) crc.getValue());
+            return record.array();
+        }
+
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value & ~0x7F) != 0) {
+                size++;
+                value >>>= 7;
+            }
+            return size;
+        }
+    }
+
+    // verifies record length and checksum upfront, buffer is positioned at the beginning of body
+    private static class Reader {
+
+        private final ByteBuffer buffer;
+
+        private Reader(byte[] record) {
+            ByteBuffer whole = ByteBuffer.wrap(record);
+            int length = (int) readVarlong(whole);
+            int start = whole.position();
+            if (length < 0 || start + length + Integer.BYTES != record.length)
+                throw new IllegalStateException(String.format("corrupted event record: wrong length %d", length));
+            CRC32C crc = new CRC32C();
+            crc.update(record, start, length);
+            if ((int) crc.getValue() != whole.getInt(start + length))
+                throw new IllegalStateException("corrupted event record: checksum mismatch");
+            this.buffer = ByteBuffer.wrap(record, start, length).slice();
+        }
+
+        private ZonedDateTime timestamp() {
+            return Instant.ofEpochMilli(varlong()).atZone(UTC);
+        }
+
+        private String string() {
+            int length = (int) readVarlong(buffer) - 1;
+            if (length < 0) return null;
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        private long varlong() {
+            long zigzag = readVarlong(buffer);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        private static long readVarlong(ByteBuffer buffer) {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalStateException("corrupted event record: varint is too long");
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package daggerok.eventstore;
+
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Subscription to $all stream starting from given position: historical events are read from disk page by page
+ * (catching up), as soon as subscriber reaches events which are still in {@link LiveEvents} ring buffer, it switches
+ * to live events without touching disk anymore. If subscriber is too slow and falls behind ring buffer, it simply
+ * goes back to catching up from disk.
+ * <p>
+ * Events are delivered one by one, in position order, by subscription own (daemon) thread. If consumer throws,
+ * subscription is stopped.
+ * <p>
+ * After {@link EventStore#cleanupAll()} positions of $all stream start from 0 again: subscription drops whatever it
+ * was doing, calls onCleanup and starts over from position 0, so events appended after cleanup are not skipped.
+ */
+@Log4j2
+public class CatchUpSubscription implements Closeable {
+
+    static final int PAGE_SIZE = 512;
+    private static final long POLL_MILLIS = 100;
+
+    private final AllStreamPages history;
+    private final LiveEvents<RecordedEvent> liveEvents;
+    private final Consumer<RecordedEvent> consumer;
+    private final Runnable onCleanup;
+    private final Thread thread;
+
+    private volatile long position;
+    private volatile boolean live;
+    private volatile boolean running = true;
+    private volatile boolean cleanedUp;
+
+    // history: reads pages of $all stream events, it's used (and closed) only by subscription thread
+    CatchUpSubscription(long fromPosition, AllStreamPages history, LiveEvents<RecordedEvent> liveEvents,
+                        Consumer<RecordedEvent> consumer, Runnable onCleanup) {
+        this.position = fromPosition;
+        this.history = history;
+        this.liveEvents = liveEvents;
+        this.consumer = consumer;
+        this.onCleanup = onCleanup;
+        this.thread = new Thread(this::run, String.format("catch-up-subscription-%d", fromPosition));
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // position of next event to be delivered
+    public long getPosition() {
+        return position;
+    }
+
+    // true if subscriber is getting live events from memory, false while it's catching up from disk
+    public boolean isLive() {
+        return live;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // thread is never interrupted, otherwise file channels it may be reading from would be closed
+    @Override
+    public void close() {
+        running = false;
+        if (Thread.currentThread() != thread) Try.run(thread::join);
+    }
+
+    // called by event store right after $all stream is cleaned up (under all aggregates write lock)
+    void cleanedUp() {
+        cleanedUp = true;
+    }
+
+    /* Private API */
+
+    // failure right after cleanup (aggregate read while it's being removed) is not a reason to stop: start over
+    private void run() {
+        while (running) {
+            Try<Void> step = Try.run(this::step);
+            if (step.isFailure() && !cleanedUp) {
+                log.warn("subscription stopped at {}: {}", position, step.getCause().getLocalizedMessage());
+                break;
+            }
+        }
+        history.close();
+        running = false;
+        live = false;
+    }
+
+    private void step() throws InterruptedException {
+        if (cleanedUp) {
+            startOver();
+            return;
+        }
+        Optional<RecordedEvent> event = liveEvents.get(position);
+        if (event.isPresent()) {
+            live = true;
+            deliver(event.get());
+        } else if (!liveEvents.isAvailable(position)) {
+            catchUp();
+        } else {
+            live = true; // caught up, waiting for new events
+            liveEvents.await(position, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void startOver() {
+        log.info("$all stream is cleaned up, subscription starts over from 0 (was at {})", position);
+        cleanedUp = false;
+        live = false;
+        history.close();
+        position = 0;
+        onCleanup.run();
+    }
+
+    private void catchUp() throws InterruptedException {
+        live = false;
+        long from = position;
+        List<RecordedEvent> page = history.read(from, PAGE_SIZE);
+        if (history.getEnd() == from) TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+        for (RecordedEvent event : page) {
+            if (!running || cleanedUp) return;
+            deliver(event);
+        }
+        // holes of $all stream (positions without event) are skipped
+        if (!cleanedUp) position = Math.max(position, history.getEnd());
+    }
+
+    private void deliver(RecordedEvent event) {
+        consumer.accept(event);
+        position = event.getPosition() + 1;
+    }
+}
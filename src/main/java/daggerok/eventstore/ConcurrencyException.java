@@ -0,0 +1,23 @@
+package daggerok.eventstore;
+
+import lombok.Getter;
+
+import java.util.UUID;
+
+@Getter
+public class ConcurrencyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final UUID aggregateId;
+    private final long expectedVersion;
+    private final long actualVersion;
+
+    public ConcurrencyException(UUID aggregateId, long expectedVersion, long actualVersion) {
+        super(String.format("aggregate %s has version %d, but %d was expected",
+                            aggregateId, actualVersion, expectedVersion));
+        this.aggregateId = aggregateId;
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+}
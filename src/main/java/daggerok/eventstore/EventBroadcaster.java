@@ -0,0 +1,280 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.sse.SseEventSink;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live push of appended events to Server-Sent Events subscribers.
+ * <p>
+ * Single dispatcher ({@link CatchUpSubscription} of $all stream started from its current position) serializes every
+ * event only once into SSE frame ({@link EventStreamFrame}) and publishes it into fan-out ring buffer
+ * ({@link LiveEvents}). Each subscriber is just a cursor in that ring buffer, it's drained by one of sender threads
+ * whenever it has new frames, so one append is fanned out to any amount of subscribers without any per subscriber
+ * serialization or disk read.
+ * <p>
+ * Slow subscribers: subscriber which is more than maxLag frames behind is handled by slowSubscribers policy:
+ * - disconnect (default): its connection is closed, client reconnects with Last-Event-ID and resumes from ring buffer
+ * (bufferSize is expected to be larger than maxLag), or from GET /events/$all if it's not there anymore
+ * - drop: frames it's behind are dropped, and it continues from the latest one
+ * Client which doesn't accept frame within sendTimeout (stalled connection) is disconnected regardless of policy,
+ * so it holds its sender thread no longer than that, and other subscribers are not starving for sender threads.
+ * <p>
+ * After {@link EventStore#cleanupAll()} ring buffer starts over from position 0, and all subscribers are
+ * disconnected: their Last-Event-ID refers to events which don't exist anymore.
+ * <p>
+ * Configuration:
+ * - eventStore.sse.bufferSize (frames kept in ring buffer, 4096 by default)
+ * - eventStore.sse.maxLag (1024 by default)
+ * - eventStore.sse.slowSubscribers (disconnect or drop)
+ * - eventStore.sse.senderThreads (0 - amount of processors)
+ * - eventStore.sse.sendTimeoutMillis (5000 by default)
+ */
+@Log4j2
+@ApplicationScoped
+public class EventBroadcaster {
+
+    public enum SlowSubscribers { DISCONNECT, DROP }
+
+    static final long DEFAULT_SEND_TIMEOUT_MILLIS = 5000;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    private int bufferSize;
+    private long maxLag;
+    private SlowSubscribers slowSubscribers;
+    private int senderThreads;
+    private long sendTimeoutMillis;
+    private EventStore eventStore;
+    private ObjectWriter jsonWriter;
+
+    private LiveEvents<Frame> frames;
+    private CatchUpSubscription dispatcher;
+    private ExecutorService senders;
+
+    EventBroadcaster() {} // proxy...
+
+    @Inject
+    public EventBroadcaster(Map<String, String> config, EventStore eventStore, ObjectMapper objectMapper) {
+        this(Integer.parseInt(config.getOrDefault("eventStore.sse.bufferSize", "4096")),
+             Long.parseLong(config.getOrDefault("eventStore.sse.maxLag", "1024")),
+             SlowSubscribers.valueOf(config.getOrDefault("eventStore.sse.slowSubscribers", "disconnect")
+                                           .trim().toUpperCase()),
+             Integer.parseInt(config.getOrDefault("eventStore.sse.senderThreads", "0")),
+             Long.parseLong(config.getOrDefault("eventStore.sse.sendTimeoutMillis",
+                                                String.valueOf(DEFAULT_SEND_TIMEOUT_MILLIS))),
+             eventStore, objectMapper);
+    }
+
+    public EventBroadcaster(int bufferSize, long maxLag, SlowSubscribers slowSubscribers, int senderThreads,
+                            EventStore eventStore, ObjectMapper objectMapper) {
+        this(bufferSize, maxLag, slowSubscribers, senderThreads, DEFAULT_SEND_TIMEOUT_MILLIS, eventStore, objectMapper);
+    }
+
+    public EventBroadcaster(int bufferSize, long maxLag, SlowSubscribers slowSubscribers, int senderThreads,
+                            long sendTimeoutMillis, EventStore eventStore, ObjectMapper objectMapper) {
+        this.bufferSize = Math.max(1, bufferSize);
+        this.maxLag = Math.max(1, maxLag);
+        this.slowSubscribers = slowSubscribers;
+        this.senderThreads = senderThreads > 0 ? senderThreads : Runtime.getRuntime().availableProcessors();
+        this.sendTimeoutMillis = Math.max(1, sendTimeoutMillis);
+        this.eventStore = eventStore;
+        this.jsonWriter = objectMapper.writerFor(RecordedEvent.class);
+    }
+
+    // subscriber gets frames appended from now on, or right after lastEventId if it's still in ring buffer
+    // aggregateId and type (event name) are optional filters
+    // must be called on request thread: first write of Jersey sink resumes its (request scoped) async context, so
+    // greeting comment is sent right here, and senders are only writing into already resumed sink
+    public void subscribe(SseEventSink sink, UUID aggregateId, String type, long lastEventId) {
+        start();
+        long published = frames.getPublished();
+        long from = lastEventId >= 0 && lastEventId < published && frames.isAvailable(lastEventId + 1)
+                ? lastEventId + 1 : published;
+        EventStreamFrame greeting = EventStreamFrame.comment(String.format("live events from %d", from));
+        if (!Try.of(() -> sink.send(greeting).toCompletableFuture().get(sendTimeoutMillis, TimeUnit.MILLISECONDS))
+                .onFailure(e -> log.debug("greeting failed: {}", e.getLocalizedMessage()))
+                .isSuccess()) {
+            Try.run(sink::close);
+            return;
+        }
+        Subscriber subscriber = new Subscriber(sink, aggregateId, type, from);
+        subscribers.add(subscriber);
+        log.debug("subscribed from {} (aggregateId: {}, type: {}), subscribers: {}",
+                  from, aggregateId, type, subscribers.size());
+        schedule(subscriber);
+    }
+
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    // frames dropped by drop policy
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // subscribers disconnected by disconnect policy or because of send failures
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        Optional.ofNullable(dispatcher).ifPresent(CatchUpSubscription::close);
+        Optional.ofNullable(senders).ifPresent(ExecutorService::shutdownNow);
+        subscribers.forEach(subscriber -> Try.run(subscriber.sink::close));
+        subscribers.clear();
+    }
+
+    /* Private API */
+
+    // dispatcher and senders are started by first subscriber only, nobody pays for it if there are no subscribers
+    private synchronized void start() {
+        if (Objects.nonNull(dispatcher)) return;
+        long position = eventStore.position();
+        frames = new LiveEvents<>(bufferSize, position, frame -> frame.position);
+        AtomicInteger counter = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(senderThreads, runnable -> {
+            Thread thread = new Thread(runnable, String.format("sse-sender-%d", counter.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher = eventStore.subscribe(position, this::broadcast, this::cleanedUp);
+        log.info("broadcasting events from {} with {} sender threads", position, senderThreads);
+    }
+
+    // runs on dispatcher thread, in position order
+    private void broadcast(RecordedEvent recordedEvent) {
+        String json = Try.of(() -> jsonWriter.writeValueAsString(recordedEvent))
+                         .getOrElseThrow(this::reThrow);
+        String type = recordedEvent.getEvent().getEventName();
+        EventStreamFrame event = EventStreamFrame.event(String.valueOf(recordedEvent.getPosition()), type, json);
+        frames.publish(new Frame(recordedEvent.getPosition(), recordedEvent.getAggregateId(), type, event));
+        subscribers.forEach(this::schedule);
+    }
+
+    // runs on dispatcher thread (the only publisher) right before it starts over from position 0
+    private void cleanedUp() {
+        frames.reset(0);
+        subscribers.forEach(this::disconnect);
+        log.info("events are cleaned up, all subscribers are disconnected");
+    }
+
+    // at most one sender drains given subscriber at a time
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.cursor < frames.getPublished() && subscriber.scheduled.compareAndSet(false, true)) {
+            Try.run(() -> senders.execute(() -> drain(subscriber)))
+               .onFailure(e -> subscriber.scheduled.set(false));
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        do {
+            while (subscriber.cursor < frames.getPublished()) {
+                long lag = frames.getPublished() - subscriber.cursor;
+                Optional<Frame> frame = lag > maxLag ? Optional.empty() : frames.get(subscriber.cursor);
+                if (!frame.isPresent()) {
+                    if (!lagging(subscriber)) return;
+                    continue;
+                }
+                if (subscriber.accepts(frame.get()) && !send(subscriber, frame.get().event)) return;
+                subscriber.cursor++;
+            }
+            subscriber.scheduled.set(false);
+            // new frame may be published right before scheduled flag was reset, so nobody would schedule it
+        } while (subscriber.cursor < frames.getPublished() && subscriber.scheduled.compareAndSet(false, true));
+    }
+
+    // returns false if subscriber is disconnected
+    private boolean lagging(Subscriber subscriber) {
+        long published = frames.getPublished();
+        if (slowSubscribers == SlowSubscribers.DROP) {
+            log.debug("subscriber is {} frames behind, dropping them", published - subscriber.cursor);
+            dropped.add(published - subscriber.cursor);
+            subscriber.cursor = published;
+            return true;
+        }
+        log.debug("subscriber is {} frames behind, disconnecting", published - subscriber.cursor);
+        disconnect(subscriber);
+        return false;
+    }
+
+    // stalled client is disconnected after sendTimeout, so it doesn't hold sender thread forever
+    private boolean send(Subscriber subscriber, EventStreamFrame event) {
+        if (subscriber.sink.isClosed()) {
+            disconnect(subscriber);
+            return false;
+        }
+        return Try.of(() -> subscriber.sink.send(event).toCompletableFuture()
+                                     .get(sendTimeoutMillis, TimeUnit.MILLISECONDS))
+                  .onFailure(e -> log.debug("send failed: {}", e.getLocalizedMessage()))
+                  .onFailure(e -> disconnect(subscriber))
+                  .isSuccess();
+    }
+
+    private void disconnect(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) disconnected.increment();
+        Try.run(subscriber.sink::close);
+    }
+
+    private RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+
+    // event serialized once for all subscribers
+    private static class Frame {
+
+        private final long position;
+        private final UUID aggregateId;
+        private final String type;
+        private final EventStreamFrame event;
+
+        private Frame(long position, UUID aggregateId, String type, EventStreamFrame event) {
+            this.position = position;
+            this.aggregateId = aggregateId;
+            this.type = type;
+            this.event = event;
+        }
+    }
+
+    private static class Subscriber {
+
+        private final SseEventSink sink;
+        private final UUID aggregateId;
+        private final String type;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private volatile long cursor; // position of next frame to be sent
+
+        private Subscriber(SseEventSink sink, UUID aggregateId, String type, long cursor) {
+            this.sink = sink;
+            this.aggregateId = aggregateId;
+            this.type = type;
+            this.cursor = cursor;
+        }
+
+        private boolean accepts(Frame frame) {
+            return (Objects.isNull(aggregateId) || aggregateId.equals(frame.aggregateId))
+                    && (Objects.isNull(type) || type.equals(frame.type));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.DomainEvent;
+
+/**
+ * On disk representation of domain events used by {@link EventStore}, storage engines only see encoded records.
+ * REST API is not affected by codec: it always speaks JSON.
+ * <p>
+ * Implementations are chosen by eventStore.codec configuration property:
+ * - json: {@link JsonEventCodec} (default) line per event JSON documents, can be used with any storage engine
+ * - binary: {@link BinaryEventCodec} compact binary records, requires segment storage engine
+ */
+public interface EventCodec {
+
+    // throws IllegalArgumentException if given event cannot be encoded (so it couldn't be decoded back later)
+    byte[] encode(DomainEvent domainEvent);
+
+    DomainEvent decode(byte[] record);
+
+    // if records are JSON documents, they can be served to REST clients as is
+    default boolean isJson() {
+        return false;
+    }
+}
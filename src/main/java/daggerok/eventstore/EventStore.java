@@ -1,82 +1,106 @@
 package daggerok.eventstore;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import daggerok.domain.Counter;
 import daggerok.eventstore.events.DomainEvent;
-import io.vavr.Predicates;
+import daggerok.infrastructure.StartupPhases;
 import io.vavr.control.Try;
 import lombok.Cleanup;
 import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import java.nio.file.*;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static java.nio.file.StandardOpenOption.APPEND;
-import static java.util.Collections.singletonList;
-
 /**
  * DO NOT USE IT IN PRODUCTION!
  * <p>
- * A dead simple event store:
- * target
- * |
- * +- db
- * |
- * +- 0000000-0000-0000-0000-000000000000.json.log
- * ...
- * +- 0000000-0000-0000-0000-00000000000N.json.log
- * db file per aggregate...
- * <p>
- * Snapshots: we will have file store like this:
- * target
- * |
- * +- db
- * |
- * +- 0000000-0000-0000-0000-000000000000.json.log      (operational append only log)
- * +- 0000000-0000-0000-0000-000000000000.past.json.log (past source of true batch append only log)
- * +- 0000000-0000-0000-0000-000000000000.snapshot.json (snapshot aggregate state built from past eventlog)
- * ...
- * +- 0000000-0000-0000-0000-00000000000N.json.log
- * +- 0000000-0000-0000-0000-00000000000N.past.json.log
- * +- 0000000-0000-0000-0000-00000000000N.snapshot.json
- * <p>
- * here we have 3 files for each aggregate:
- * - *.json.log is using currently for new events appending (can be empty or missing from beginning, until first event will be stored)
- * - *.snapshot.json latest created snapshot of an aggregate (can contains empty JSON object: '{}' or object like this '{"value":0, "values":[]}')
- * - *.past.json.log contains all aggregate events where used to build current snapshot (can be empty from beginning until first snapshot is built)
+ * A dead simple event store: domain events are serialized into JSON and stored by {@link StorageEngine}, aggregates
+ * are restored from latest snapshot plus events appended after it: {@link #loadAggregate(UUID)}
  * <p>
- * to implement snapshots, we can agreed on next: if snapshot has been triggered with current aggregate value:
- * - all data must be transferred from: ${UUID}.json.log into (appended): ${UUID}.past.json.log
- * - given even must be placed (replaced) into cleared ${UUID}.json.log
- * - snapshot data file must be placed (replaced) into: ${UUID}.snapshot.json
- * <p>
- * now we must finally change way of how to read from event store:
- * 1. recreate counter since last snapshot:
- * Counter(${UUID}.snapshot.json).apply(${UUID}.json.log) -> Counter State
- * 2. recreate counter from beginning of the times:
- * Counter(empty {} snapshot).apply(${UUID}.past.json.log, -> ${UUID}.json.log) -> Counter State
+ * Events of all aggregates are also recorded into globally ordered {@link AllStream}, so they can be read in append
+ * order: {@link #readAll(long, int)} or subscribed to: {@link #subscribe(long, Consumer)}
+ *
+ * @see FileStorageEngine
+ * @see SegmentStorageEngine
  */
 @Log4j2
 @ApplicationScoped
 public class EventStore {
 
-    private Path dbBasePath;
-    private ObjectMapper objectMapper;
+    // expected version of append without optimistic concurrency check
+    public static final long ANY_VERSION = -1L;
+
+    // reads, appends and snapshots of the same aggregate are guarded by its stripe lock
+    private final StripedLocks locks = new StripedLocks(Runtime.getRuntime().availableProcessors() * 16);
+    private final Map<UUID, AtomicLong> versions = new ConcurrentHashMap<>();
+    // catalog of all stored aggregates sorted by aggregateId: db is listed only once on open, then new aggregates are
+    // added by their first append
+    private final NavigableSet<UUID> catalog = new ConcurrentSkipListSet<>();
+    // subscriptions to be started over after cleanupAll
+    private final Set<CatchUpSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    private EventCodec eventCodec;
+    private ObjectWriter jsonWriter;
+    private AggregateCache aggregateCache;
+    private StorageEngine storageEngine;
+    private Snapshotter snapshotter;
+    private AllStream allStream;
+    private IoExecutor ioExecutor;
 
     EventStore() {} // blah..
 
-    @Inject
     public EventStore(Path dbBasePath, ObjectMapper objectMapper) {
-        this.dbBasePath = dbBasePath;
-        this.objectMapper = objectMapper;
+        this(new FileStorageEngine(dbBasePath, objectMapper), new JsonEventCodec(objectMapper), objectMapper,
+             new AggregateCache(Collections.emptyMap()), Snapshotter.disabled(),
+             new AllStream(dbBasePath, AllStream.DEFAULT_LIVE_EVENTS));
+    }
+
+    public EventStore(StorageEngine storageEngine, ObjectMapper objectMapper, AggregateCache aggregateCache) {
+        this(storageEngine, objectMapper, aggregateCache, Snapshotter.disabled());
+    }
+
+    public EventStore(StorageEngine storageEngine, ObjectMapper objectMapper, AggregateCache aggregateCache,
+                      Snapshotter snapshotter) {
+        this(storageEngine, new JsonEventCodec(objectMapper), objectMapper, aggregateCache, snapshotter);
+    }
+
+    public EventStore(StorageEngine storageEngine, EventCodec eventCodec, ObjectMapper objectMapper,
+                      AggregateCache aggregateCache, Snapshotter snapshotter) {
+        this(storageEngine, eventCodec, objectMapper, aggregateCache, snapshotter, AllStream.disabled());
+    }
+
+    public EventStore(StorageEngine storageEngine, EventCodec eventCodec, ObjectMapper objectMapper,
+                      AggregateCache aggregateCache, Snapshotter snapshotter, AllStream allStream) {
+        this(storageEngine, eventCodec, objectMapper, aggregateCache, snapshotter, allStream, IoExecutor.callerRuns());
+    }
+
+    @Inject
+    public EventStore(StorageEngine storageEngine, EventCodec eventCodec, ObjectMapper objectMapper,
+                      AggregateCache aggregateCache, Snapshotter snapshotter, AllStream allStream,
+                      IoExecutor ioExecutor) {
+        this.storageEngine = storageEngine;
+        this.eventCodec = eventCodec;
+        this.jsonWriter = objectMapper.writerFor(DomainEvent.class);
+        this.aggregateCache = aggregateCache;
+        this.snapshotter = snapshotter;
+        this.allStream = allStream;
+        this.ioExecutor = ioExecutor;
     }
 
     // Keep in mind: PostConstruct (if needed) happens earlier then ContainerInitialized event will occur, but!
@@ -84,50 +108,73 @@ public class EventStore {
     // private void on(@Observes ContainerInitialized containerInitializedEvent) {
     @PostConstruct
     public void postConstruct() {
-        Path dbDir = dbBasePath.toAbsolutePath();
-        if (Files.notExists(dbDir, LinkOption.NOFOLLOW_LINKS)) {
-            Try.run(() -> Files.createDirectories(dbDir))
-               .getOrElseThrow(this::reThrow);
-        }
+        StartupPhases.begin("storeRecovery");
+        storageEngine.open();
+        catalog.addAll(storageEngine.findAll());
+        if (!allStream.open()) allStream.recover(catalog, storageEngine::findAppendedSince, storageEngine::version);
+        StartupPhases.end("storeRecovery");
+        snapshotter.start(this::snapshot);
+        allStream.startCheckpoints(this::checkpointAll);
         log.debug("EventStore constructed.");
     }
 
+    @PreDestroy
+    public void preDestroy() {
+        snapshotter.stop();
+        allStream.close();
+        storageEngine.close();
+        log.debug("EventStore destroyed.");
+    }
+
     /* Public API */
 
-    // step 1: get or create file by filename "${aggregateId}.past.json.log"
-    // stream it's content...
-    // step 1: get or create file by filename "${aggregateId}.json.log"
-    // stream it's content too...
-    // step 2: read line by line json strings from "${aggregateId}.json.log" file
-    // step 3: using Stream API map them into DomainEvents
-    // step 4: collect and return new CopyOnWriteArrayList with events found.
+    // step 1: stream all aggregate records from storage engine
+    // step 2: using Stream API map them into DomainEvents
+    // step 3: collect and return new CopyOnWriteArrayList with events found.
     public Collection<DomainEvent> read(UUID aggregateId) {
         log.debug(aggregateId);
-        Path pastEventLog = createAndGetDbFilePath(aggregateId, ".past.json.log");
-        @Cleanup Stream<String> streamPastEventLog = Try.of(() -> Files.lines(pastEventLog))
-                                                        .getOrElseThrow(this::reThrow)
-                                                        .filter(Objects::nonNull)
-                                                        .map(String::trim)
-                                                        .filter(Predicates.not(String::isEmpty))
-                                                        .peek(log::info);
-        Path eventLog = createAndGetDbFilePath(aggregateId, ".json.log");
-        @Cleanup Stream<String> streamEventLog = Try.of(() -> Files.lines(eventLog))
-                                                    .getOrElseThrow(this::reThrow)
-                                                    .filter(Objects::nonNull)
-                                                    .map(String::trim)
-                                                    .filter(Predicates.not(String::isEmpty))
-                                                    .peek(log::info);
-        return Stream.concat(streamPastEventLog, streamEventLog)
-                     .map(json -> Try.of(() -> objectMapper.readValue(json, DomainEvent.class))
-                                     .getOrElseThrow(this::reThrow))
-                     .collect(Collectors.toCollection(CopyOnWriteArrayList::new));
-    }
-
-    // step 1: find file by filename "${domainEvent.getAggregateId()}.json.log"
-    //   - if file doesn't exists -> create new one
-    // step 2: convert domainEvent object into JSON string
-    // step 3: if json doesn't contains type field, throw an exception
-    // step 4: append JSON string into end of the "${domainEvent.getAggregateId()}.json.log" file
+        return locks.read(aggregateId, () -> readFrom(aggregateId, 0L));
+    }
+
+    // stream JSON records of aggregate events (at most limit of them starting from fromVersion) into output line by
+    // line, nothing is collected in memory, JSON records are not even materialized as DomainEvents (other records are
+    // converted into JSON one by one)
+    // aggregate read lock is only held while range is fixed (by current version) and records stream is opened, output
+    // is written after it's released, so slow client never blocks appends (or other readers queued behind them)
+    public void stream(UUID aggregateId, long fromVersion, long limit, OutputStream output) {
+        if (fromVersion < 0 || limit < 0) throw new IllegalArgumentException(
+                String.format("fromVersion and limit must not be negative: %d, %d", fromVersion, limit));
+        @Cleanup Stream<byte[]> records = locks.read(aggregateId, () -> {
+            long count = Math.min(limit, Math.max(0, versionOf(aggregateId).get() - fromVersion));
+            return storageEngine.read(aggregateId, fromVersion).limit(count);
+        });
+        records.forEach(record -> Try.run(() -> {
+            output.write(eventCodec.isJson() ? record : toJson(record));
+            output.write('\n');
+        }).getOrElseThrow(this::reThrow));
+        Try.run(output::flush).getOrElseThrow(this::reThrow);
+    }
+
+    // step 0: hot aggregates are served from aggregate cache without touching file system at all
+    // step 1: read latest aggregate snapshot if any
+    // step 2: replay only tail events (appended after snapshot version) on top of snapshot aggregate state
+    // step 3: if there is no snapshot yet, fallback to full history replay
+    // aggregate is cached while read lock is still held, so no append can sneak in between and leave stale cache entry
+    // replayed aggregate version is the amount of stored events, so it's kept as known version too
+    public Counter loadAggregate(UUID aggregateId) {
+        log.debug("loading aggregate: {}", aggregateId);
+        return aggregateCache.get(aggregateId).orElseGet(() -> locks.read(aggregateId, () -> {
+            Counter counter = storageEngine.readSnapshot(aggregateId)
+                                           .map(snapshot -> replayFrom(snapshot.getAggregate(), aggregateId,
+                                                                       snapshot.getVersion()))
+                                           .orElseGet(() -> replayFrom(new Counter(), aggregateId, 0L));
+            versions.computeIfAbsent(aggregateId, id -> new AtomicLong(counter.getVersion()));
+            aggregateCache.put(counter);
+            return counter;
+        }));
+    }
+
+    // append each event on its own, without optimistic concurrency check
     public void appendAll(DomainEvent... domainEvents) {
         for (DomainEvent domainEvent : domainEvents) {
             append(domainEvent);
@@ -135,109 +182,252 @@ public class EventStore {
     }
 
     public void append(DomainEvent domainEvent) {
-        log.debug(domainEvent);
-        Path eventLog = createAndGetDbFilePath(domainEvent.getAggregateId(), ".json.log");
-        String json = Try.of(() -> objectMapper.writeValueAsString(domainEvent))
-                         .getOrElseThrow(this::reThrow);
-        JsonNode jsonNode = Try.of(() -> objectMapper.readTree(json))
-                               .getOrElseThrow(this::reThrow);
-        if (Objects.nonNull(jsonNode.get("type").asText())) {
-            Try.run(() -> Files.write(eventLog, singletonList(json), APPEND));
+        append(domainEvent.getAggregateId(), ANY_VERSION, domainEvent);
+    }
+
+    // step 1: encode all domainEvents into records (nothing is written if any of them is invalid)
+    // step 2: while holding aggregate lock, verify its version is equal to expected one (unless ANY_VERSION is expected)
+    // step 3: append all records at once and move aggregate version forward
+    public void append(UUID aggregateId, long expectedVersion, DomainEvent... domainEvents) {
+        List<DomainEvent> events = Arrays.asList(domainEvents);
+        appendRecords(aggregateId, expectedVersion, events, serialize(aggregateId, events));
+    }
+
+    // step 1: group events by aggregate (keeping their order), validate and serialize all of them before touching disk
+    // step 2: write every group by single storage engine append, so batch is atomic per aggregate
+    // returns resulting version of each aggregate
+    public Map<UUID, Long> appendBatch(Collection<DomainEvent> domainEvents) {
+        Map<UUID, List<DomainEvent>> groups = new LinkedHashMap<>();
+        for (DomainEvent domainEvent : domainEvents) {
+            UUID aggregateId = Objects.requireNonNull(domainEvent.getAggregateId(), "aggregateId is required");
+            groups.computeIfAbsent(aggregateId, id -> new ArrayList<>()).add(domainEvent);
         }
+        Map<UUID, List<byte[]>> records = new LinkedHashMap<>();
+        groups.forEach((aggregateId, events) -> records.put(aggregateId, serialize(aggregateId, events)));
+        Map<UUID, Long> appended = new LinkedHashMap<>();
+        groups.forEach((aggregateId, events) -> appended.put(
+                aggregateId, appendRecords(aggregateId, ANY_VERSION, events, records.get(aggregateId))));
+        return appended;
+    }
+
+    // events of at most maxCount positions of $all stream, page of single reader: see AllStreamPages
+    // (positions without event are skipped, so there may be fewer events, even when next positions have some)
+    public List<RecordedEvent> readAll(long fromPosition, int maxCount) {
+        if (fromPosition < 0 || maxCount < 0) throw new IllegalArgumentException(
+                String.format("fromPosition and maxCount must not be negative: %d, %d", fromPosition, maxCount));
+        try (AllStreamPages pages = new AllStreamPages(allStream, locks, storageEngine, eventCodec)) {
+            return pages.read(fromPosition, maxCount);
+        }
+    }
+
+    // catch up subscription to $all stream: historical events (starting from given position) are read from disk, then
+    // live events are delivered right from memory as they are appended
+    public CatchUpSubscription subscribe(long fromPosition, Consumer<RecordedEvent> consumer) {
+        return subscribe(fromPosition, consumer, () -> {});
+    }
+
+    // same, but after cleanupAll subscription starts over from position 0 of new $all stream, right after onCleanup
+    // is called (by subscription thread), so subscriber may drop everything it has built from old events
+    public CatchUpSubscription subscribe(long fromPosition, Consumer<RecordedEvent> consumer, Runnable onCleanup) {
+        if (fromPosition < 0) throw new IllegalArgumentException(
+                String.format("fromPosition must not be negative: %d", fromPosition));
+        AllStreamPages pages = new AllStreamPages(allStream, locks, storageEngine, eventCodec);
+        CatchUpSubscription subscription = new CatchUpSubscription(fromPosition, pages, allStream.liveEvents(),
+                                                                   consumer, onCleanup);
+        subscriptions.removeIf(s -> !s.isRunning());
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    // position next appended event will get in $all stream
+    public long position() {
+        return allStream.size();
+    }
+
+    // current aggregate version: amount of events stored
+    public long version(UUID aggregateId) {
+        return locks.read(aggregateId, () -> versionOf(aggregateId).get());
     }
 
-    // - stream all absolute db paths in db folder
-    // - remove if any exists
     public void cleanupAll() {
-        log.debug("clearing all *.json* files...");
-        cleanupBy(entry -> entry.toString().contains(".json"));
+        locks.writeAll(() -> {
+            storageEngine.cleanupAll();
+            allStream.cleanup();
+            subscriptions.removeIf(subscription -> !subscription.isRunning());
+            subscriptions.forEach(CatchUpSubscription::cleanedUp);
+            aggregateCache.invalidateAll();
+            versions.clear();
+            catalog.clear();
+        });
     }
 
-    public void cleanupBy(DirectoryStream.Filter<Path> pathFilter) {
-        Try.run(() -> {
-            try (DirectoryStream<Path> paths = Files.newDirectoryStream(dbBasePath.toAbsolutePath(), pathFilter)) {
-                for (Path path : paths) {
-                    log.debug("trying remove {} file from event store", path);
-                    Files.deleteIfExists(path);
-                }
-            }
-        }).onFailure(e -> log.error(e.getLocalizedMessage(), e));
+    // $all stream checkpoint is taken while no aggregate is being appended, so it matches storage engine append mark
+    void checkpointAll() {
+        AtomicReference<AllStream.Checkpoint> checkpoint = new AtomicReference<>();
+        locks.writeAll(() -> checkpoint.set(allStream.checkpointAt(storageEngine.appendMark())));
+        allStream.checkpoint(checkpoint.get());
     }
 
-    // - find all files in db folder with suffixed filter
-    // - take all it's filenames
-    // - remove suffix part from each filename
-    // - map it into UUID
-    // - collect result into list
+    // all stored aggregates, sorted by aggregateId
     public Collection<UUID> findAll() {
-        return findAllBy(filename -> filename.endsWith(".past.json.log"));
+        return new ArrayList<>(catalog);
+    }
+
+    // at most maxCount stored aggregates, most recently appended first: $all stream is read backwards page by page
+    // only until that many of them are found (catalog order is used if $all stream is disabled)
+    public List<UUID> findRecent(int maxCount) {
+        if (maxCount < 0) throw new IllegalArgumentException(
+                String.format("maxCount must not be negative: %d", maxCount));
+        if (catalog.size() <= maxCount || !allStream.isEnabled())
+            return catalog.stream().limit(maxCount).collect(Collectors.toList());
+        Set<UUID> recent = new LinkedHashSet<>();
+        for (long to = allStream.size(); to > 0 && recent.size() < maxCount; to -= CatchUpSubscription.PAGE_SIZE) {
+            long from = Math.max(0, to - CatchUpSubscription.PAGE_SIZE);
+            List<AllStream.Entry> entries = allStream.entries(from, (int) (to - from));
+            for (int i = entries.size() - 1; i >= 0 && recent.size() < maxCount; i--) {
+                UUID aggregateId = entries.get(i).aggregateId;
+                if (catalog.contains(aggregateId)) recent.add(aggregateId);
+            }
+        }
+        return new ArrayList<>(recent);
+    }
+
+    // page of stored aggregates sorted by aggregateId: at most limit of them right after given one (or from the very
+    // first one if after is null), which are matching filter
+    public List<UUID> findAll(UUID after, int limit, Predicate<UUID> filter) {
+        if (limit < 0) throw new IllegalArgumentException(String.format("limit must not be negative: %d", limit));
+        NavigableSet<UUID> aggregateIds = Objects.isNull(after) ? catalog : catalog.tailSet(after, false);
+        return aggregateIds.stream()
+                           .filter(filter)
+                           .limit(limit)
+                           .collect(Collectors.toList());
+    }
+
+    // append all pending domain events out from aggregate into event log, unless somebody else has changed it
+    // meanwhile, aggregate snapshot is going to be taken later in background by snapshotter
+    public void save(Counter aggregate) {
+        log.debug("saving: {}", aggregate);
+        DomainEvent[] domainEvents = aggregate.getEventStream().toArray(new DomainEvent[0]);
+        append(aggregate.getAggregateId(), aggregate.getVersion() - domainEvents.length, domainEvents);
+        aggregate.getEventStream().clear();
+    }
+
+    /* Async API: blocking calls of public API are running on I/O executor, caller thread is never waiting for disk */
+
+    public CompletionStage<Counter> loadAggregateAsync(UUID aggregateId) {
+        return ioExecutor.submit(() -> loadAggregate(aggregateId));
+    }
+
+    public CompletionStage<Collection<DomainEvent>> readAsync(UUID aggregateId) {
+        return ioExecutor.submit(() -> read(aggregateId));
+    }
+
+    public CompletionStage<Void> appendAsync(DomainEvent domainEvent) {
+        return ioExecutor.submit(() -> {
+            append(domainEvent);
+            return null;
+        });
     }
 
-    public Collection<UUID> findAllBy(Predicate<String> filenamePredicate) {
-        String[] files = dbBasePath.toAbsolutePath().toFile().list(
-                (dir, filename) -> filenamePredicate.test(filename));
-        log.info("found filenames: {}", files);
-        return Optional.ofNullable(files)
-                       .map(Arrays::stream)
-                       .orElse(Stream.empty())
-                       .map(filename -> filename.replace(".past.json.log", ""))
-                       .map(UUID::fromString)
-                       .collect(Collectors.toList());
+    public CompletionStage<Map<UUID, Long>> appendBatchAsync(Collection<DomainEvent> domainEvents) {
+        return ioExecutor.submit(() -> appendBatch(domainEvents));
+    }
+
+    public CompletionStage<List<RecordedEvent>> readAllAsync(long fromPosition, int maxCount) {
+        return ioExecutor.submit(() -> readAll(fromPosition, maxCount));
+    }
+
+    // returned stage is completed by the same aggregate, with all its pending events appended
+    public CompletionStage<Counter> saveAsync(Counter aggregate) {
+        return ioExecutor.submit(() -> {
+            save(aggregate);
+            return aggregate;
+        });
+    }
+
+    public CompletionStage<Void> cleanupAllAsync() {
+        return ioExecutor.submit(() -> {
+            cleanupAll();
+            return null;
+        });
     }
 
     /* Snapshot API */
 
+    // whole snapshot is done under aggregate write lock: no other append may get in between and no read may see
+    // event log files in the middle of the move
     public void snapshot(Counter aggregate) {
         log.debug("snapshotting: {}", aggregate);
-        // place all domain events out from aggregate into fresh new clean ${aggregateId}.json.log file
-        appendAll(aggregate.getEventStream().toArray(new DomainEvent[0]));
-        // clean aggregate.eventStream
-        aggregate.getEventStream().clear();
-        // serialize aggregate into json and replace with it content of ${aggregateId}.snapshot.json file
-        saveSnapshot(aggregate);
-        // crete ${aggregateId}.past.json.log
-        Path pastEventLog = createAndGetDbFilePath(aggregate.getAggregateId(), ".past.json.log");
-        // read ${aggregateId}.json.log file and append everything from it, line-by-line into ${aggregateId}.past.json.log
-        Path eventLog = createAndGetDbFilePath(aggregate.getAggregateId(), ".json.log");
-        List<String> jsons = Try.of(() -> Files.lines(eventLog))
-                                .getOrElseThrow(this::reThrow)
-                                .filter(Objects::nonNull)
-                                .map(String::trim)
-                                .filter(Predicates.not(String::isEmpty))
-                                .collect(Collectors.toList());
-        Try.run(() -> Files.write(pastEventLog, jsons, APPEND));
-        // // that just doesn't worked (truncate ${aggregateId}.json.log file) see deletion workaround...
-        // Try.run(() -> Files.write(eventLog, new byte[0], StandardOpenOption.TRUNCATE_EXISTING));
-        // remove ${aggregateId}.json.log file
-        cleanupBy(entry -> entry.toAbsolutePath()
-                                .toString()
-                                .endsWith(String.format("%s.json.log", aggregate.getAggregateId())));
+        locks.write(aggregate.getAggregateId(), () -> {
+            // place all domain events out from aggregate into event log and clean aggregate.eventStream
+            save(aggregate);
+            // cached aggregate is still valid, all its events are already stored
+            storageEngine.snapshot(aggregate.getVersion(), aggregate);
+        });
+        snapshotter.snapshotted(aggregate.getAggregateId());
+    }
+
+    // snapshot current state of stored aggregate (used by background snapshotter)
+    public void snapshot(UUID aggregateId) {
+        locks.write(aggregateId, () -> {
+            Counter aggregate = loadAggregate(aggregateId);
+            if (aggregate.getVersion() > 0) storageEngine.snapshot(aggregate.getVersion(), aggregate);
+        });
     }
 
     /* Private API */
 
-    private void saveSnapshot(Counter aggregate) {
-        Objects.requireNonNull(aggregate);
-        Path snapshotFile = createAndGetDbFilePath(aggregate.getAggregateId(), ".snapshot.json");
-        Try.of(() -> objectMapper.writeValueAsString(aggregate))
-           .andThenTry(json -> Files.write(snapshotFile, singletonList(json)))
-           .getOrElseThrow(this::reThrow);
+    private List<byte[]> serialize(UUID aggregateId, List<DomainEvent> domainEvents) {
+        Objects.requireNonNull(aggregateId);
+        List<byte[]> records = new ArrayList<>(domainEvents.size());
+        for (DomainEvent domainEvent : domainEvents) {
+            log.debug(domainEvent);
+            if (!aggregateId.equals(domainEvent.getAggregateId())) throw new IllegalArgumentException(
+                    String.format("event %s doesn't belong to aggregate %s", domainEvent, aggregateId));
+            records.add(eventCodec.encode(domainEvent));
+        }
+        return records;
+    }
+
+    // returns new aggregate version
+    private long appendRecords(UUID aggregateId, long expectedVersion,
+                               List<DomainEvent> domainEvents, List<byte[]> records) {
+        return locks.write(aggregateId, () -> {
+            AtomicLong version = versionOf(aggregateId);
+            if (expectedVersion != ANY_VERSION && expectedVersion != version.get())
+                throw new ConcurrencyException(aggregateId, expectedVersion, version.get());
+            storageEngine.append(aggregateId, records);
+            if (version.get() == 0) catalog.add(aggregateId);
+            allStream.record(aggregateId, version.get(), domainEvents);
+            domainEvents.forEach(aggregateCache::apply);
+            snapshotter.appended(aggregateId, records.size());
+            return version.addAndGet(records.size());
+        });
     }
 
-    private Path createAndGetDbFilePath(UUID aggregateId, String suffix) {
-        Path dbFilePath = getDbFilePath(aggregateId, suffix);
-        if (Files.notExists(dbFilePath, LinkOption.NOFOLLOW_LINKS)) {
-            Try.run(() -> Files.createFile(dbFilePath))
-               .getOrElseThrow(this::reThrow);
-        }
-        return dbFilePath;
+    // version is loaded from storage engine only once per aggregate, then it's kept in memory
+    // must be called under aggregate lock
+    private AtomicLong versionOf(UUID aggregateId) {
+        return versions.computeIfAbsent(aggregateId, id -> new AtomicLong(storageEngine.version(id)));
     }
 
-    private Path getDbFilePath(UUID aggregateId, String suffix) {
-        Objects.requireNonNull(aggregateId);
-        String logFilename = String.format("%s%s", aggregateId.toString(), suffix);
-        String absoluteParentPath = dbBasePath.toAbsolutePath().toString();
-        return Paths.get(absoluteParentPath, logFilename);
+    private byte[] toJson(byte[] record) {
+        return Try.of(() -> jsonWriter.writeValueAsBytes(eventCodec.decode(record)))
+                  .getOrElseThrow(this::reThrow);
+    }
+
+    private Collection<DomainEvent> readFrom(UUID aggregateId, long fromVersion) {
+        @Cleanup Stream<byte[]> records = storageEngine.read(aggregateId, fromVersion);
+        return records.map(eventCodec::decode)
+                      // CopyOnWriteArrayList is copying whole array on every add, so it's built from a list at once
+                      .collect(Collectors.collectingAndThen(Collectors.toList(), CopyOnWriteArrayList::new));
+    }
+
+    // events are folded into aggregate right while they are decoded, history is never collected in memory
+    private Counter replayFrom(Counter snapshot, UUID aggregateId, long fromVersion) {
+        @Cleanup Stream<byte[]> records = storageEngine.read(aggregateId, fromVersion);
+        return Counter.rebuild(snapshot, records.map(eventCodec::decode));
     }
 
     private RuntimeException reThrow(Throwable throwable) {
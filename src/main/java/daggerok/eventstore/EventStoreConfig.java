@@ -1,5 +1,6 @@
 package daggerok.eventstore;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.PostConstruct;
@@ -24,14 +25,26 @@ public class EventStoreConfig {
     // private void on(@Observes ContainerInitialized containerInitialized) {
     @PostConstruct
     public void init() {
+        config.putAll(load());
+    }
 
+    // microprofile-config.properties overridden by system properties of the same keys (-Dserver.port=8081), it's also
+    // used by Main to bootstrap server before CDI container is started
+    public static Map<String, String> load() {
         try (InputStream resourceAsStream = EventStoreConfig.class
                 .getResourceAsStream("/META-INF/microprofile-config.properties")) {
 
             Properties properties = new Properties();
             properties.load(resourceAsStream);
+            Map<String, String> config = new ConcurrentHashMap<>();
             properties.stringPropertyNames()
-                      .forEach(key -> config.put(key, properties.getProperty(key)));
+                      .forEach(key -> config.put(key, System.getProperty(key, properties.getProperty(key))));
+            System.getProperties()
+                  .stringPropertyNames()
+                  .stream()
+                  .filter(key -> key.startsWith("eventStore.") || key.startsWith("server."))
+                  .forEach(key -> config.put(key, System.getProperty(key)));
+            return config;
 
         } catch (Throwable throwable) {
             log.error(throwable.getLocalizedMessage(), throwable);
@@ -45,4 +58,63 @@ public class EventStoreConfig {
                 ? Paths.get(config.get("eventStore.dbBasePath"))
                 : Paths.get("target", "db");
     }
+
+    @Produces
+    private EventCodec eventCodec(ObjectMapper objectMapper) {
+        String codec = config.getOrDefault("eventStore.codec", "json");
+        log.info("using {} event codec", codec);
+        switch (codec) {
+            case "json":
+                return new JsonEventCodec(objectMapper);
+            case "binary":
+                // file storage engine is line based, binary records would be broken by new line bytes
+                if (!"segment".equals(config.getOrDefault("eventStore.engine", "segment")))
+                    throw new IllegalStateException("binary eventStore.codec requires segment eventStore.engine");
+                return new BinaryEventCodec();
+            default:
+                throw new IllegalStateException(String.format("unknown eventStore.codec: %s", codec));
+        }
+    }
+
+    @Produces
+    private AllStream allStream(Path dbBasePath) {
+        int liveEvents = Integer.parseInt(config.getOrDefault("eventStore.all.liveEvents",
+                                                              String.valueOf(AllStream.DEFAULT_LIVE_EVENTS)));
+        long checkpointMillis = Long.parseLong(config.getOrDefault("eventStore.all.checkpointMillis",
+                                                                   String.valueOf(AllStream.DEFAULT_CHECKPOINT_MILLIS)));
+        return new AllStream(dbBasePath, liveEvents, checkpointMillis);
+    }
+
+    // segment engine is the default one: its records are length prefixed and checksummed, file engine records are
+    // plain JSON lines, so only torn tails (not corrupted records) can be detected there
+    @Produces
+    private StorageEngine storageEngine(Path dbBasePath, ObjectMapper objectMapper) {
+        String engine = config.getOrDefault("eventStore.engine", "segment");
+        log.info("using {} storage engine", engine);
+        switch (engine) {
+            case "file":
+                boolean mmap = Boolean.parseBoolean(config.getOrDefault("eventStore.file.mmap", "false"));
+                return new FileStorageEngine(dbBasePath, objectMapper, mmap);
+            case "segment":
+                // store written by file engine (default one before) is not silently ignored
+                if (!new FileStorageEngine(dbBasePath, objectMapper).findAll().isEmpty())
+                    throw new IllegalStateException(String.format(
+                            "%s contains file engine event logs: set eventStore.engine=file to keep using them",
+                            dbBasePath.toAbsolutePath()));
+                long maxSegmentSize = config.containsKey("eventStore.segment.maxSize")
+                        ? Long.parseLong(config.get("eventStore.segment.maxSize"))
+                        : SegmentStorageEngine.DEFAULT_MAX_SEGMENT_SIZE;
+                int maxBatchSize = config.containsKey("eventStore.segment.groupCommit.maxBatchSize")
+                        ? Integer.parseInt(config.get("eventStore.segment.groupCommit.maxBatchSize"))
+                        : SegmentStorageEngine.DEFAULT_MAX_BATCH_SIZE;
+                long lingerMillis = config.containsKey("eventStore.segment.groupCommit.lingerMillis")
+                        ? Long.parseLong(config.get("eventStore.segment.groupCommit.lingerMillis"))
+                        : SegmentStorageEngine.DEFAULT_LINGER_MILLIS;
+                boolean fsync = Boolean.parseBoolean(config.getOrDefault("eventStore.segment.fsync", "true"));
+                return new SegmentStorageEngine(dbBasePath, objectMapper, maxSegmentSize,
+                                                maxBatchSize, lingerMillis, fsync);
+            default:
+                throw new IllegalStateException(String.format("unknown eventStore.engine: %s", engine));
+        }
+    }
 }
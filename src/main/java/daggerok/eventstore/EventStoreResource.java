@@ -4,17 +4,29 @@ import daggerok.eventstore.events.CounterCreated;
 import daggerok.eventstore.events.CounterIncremented;
 import daggerok.eventstore.events.CounterSuspended;
 import daggerok.eventstore.events.DomainEvent;
+import daggerok.infrastructure.AsyncResponses;
 import lombok.extern.log4j.Log4j2;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.json.Json;
+import javax.json.JsonObjectBuilder;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.sse.SseEventSink;
 import java.net.URI;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.function.BiFunction;
@@ -24,15 +36,19 @@ import java.util.function.BiFunction;
 @ApplicationScoped
 public class EventStoreResource {
 
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
     private UriInfo uriInfo;
     private EventStore eventStore;
+    private EventBroadcaster eventBroadcaster;
 
     EventStoreResource() {} // yuk...
 
     @Inject
-    public EventStoreResource(@Context UriInfo uriInfo, EventStore eventStore) {
+    public EventStoreResource(@Context UriInfo uriInfo, EventStore eventStore, EventBroadcaster eventBroadcaster) {
         this.uriInfo = uriInfo;
         this.eventStore = eventStore;
+        this.eventBroadcaster = eventBroadcaster;
     }
 
     private BiFunction<Object, String, Object> require = (variable, variableName) ->
@@ -41,75 +57,140 @@ public class EventStoreResource {
 
     @PUT
     @Path("{aggregateId}")
-    public Response incrementCounter(CounterIncremented counterIncremented) {
+    @Produces(MediaType.APPLICATION_JSON)
+    public void incrementCounter(CounterIncremented counterIncremented, @Suspended AsyncResponse asyncResponse) {
         require.apply(counterIncremented.getAggregateId(), "aggregateId");
-        eventStore.append(counterIncremented);
-        return Response.accepted()
-                       .entity(Json.createObjectBuilder()
-                                   .add("result",
-                                        String.format("counter incremented by %s", counterIncremented.getBy()))
-                                   .build())
-                       .build();
+        AsyncResponses.resume(asyncResponse, eventStore.appendAsync(counterIncremented).thenApply(
+                appended -> Response.accepted()
+                                    .entity(Json.createObjectBuilder()
+                                                .add("result", String.format("counter incremented by %s",
+                                                                             counterIncremented.getBy()))
+                                                .build())
+                                    .build()));
     }
 
     @DELETE
     @Path("{aggregateId}")
-    public Response suspendCounter(CounterSuspended counterSuspended) {
+    @Produces(MediaType.APPLICATION_JSON)
+    public void suspendCounter(CounterSuspended counterSuspended, @Suspended AsyncResponse asyncResponse) {
         require.apply(counterSuspended.getAggregateId(), "aggregateId");
-        eventStore.append(counterSuspended);
-        return Response.accepted()
-                       .entity(Json.createObjectBuilder()
-                                   .add("result", "counter suspended")
-                                   .build())
-                       .build();
+        AsyncResponses.resume(asyncResponse, eventStore.appendAsync(counterSuspended).thenApply(
+                appended -> Response.accepted()
+                                    .entity(Json.createObjectBuilder()
+                                                .add("result", "counter suspended")
+                                                .build())
+                                    .build()));
+    }
+
+    // page of $all stream: events of all aggregates in global append order, next is position to continue from
+    @GET
+    @Path("$all")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void readAll(@QueryParam("from") @DefaultValue("0") long from,
+                        @QueryParam("limit") @DefaultValue("100") int limit,
+                        @Suspended AsyncResponse asyncResponse) {
+        if (limit < 1 || limit > 1000) throw new IllegalArgumentException("limit must be between 1 and 1000");
+        log.debug("reading $all from {} (limit {})", from, limit);
+        // page without events still moves next over positions without event (never over ones which weren't read)
+        long position = eventStore.position();
+        AsyncResponses.resume(asyncResponse, eventStore.readAllAsync(from, limit).thenApply(events -> {
+            long next = events.isEmpty() ? Math.max(from, Math.min(from + limit, position))
+                                         : events.get(events.size() - 1).getPosition() + 1;
+            Map<String, Object> page = new LinkedHashMap<>();
+            page.put("events", events);
+            page.put("next", next);
+            return Response.ok(page)
+                           .build();
+        }));
+    }
+
+    // Server-Sent Events: live events as they are appended (optionally only of given aggregate and / or event type),
+    // every event id is its $all stream position, so reconnecting client resumes right after Last-Event-ID
+    @GET
+    @Path("stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamEvents(@Context SseEventSink sink,
+                             @QueryParam("aggregateId") UUID aggregateId,
+                             @QueryParam("type") String type,
+                             @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) @DefaultValue("-1") long lastEventId) {
+        log.debug("streaming live events (aggregateId: {}, type: {}, lastEventId: {})", aggregateId, type, lastEventId);
+        eventBroadcaster.subscribe(sink, aggregateId, type, lastEventId);
     }
 
     @GET
     @Path("{aggregateId}")
-    public Response getCounter(@PathParam("aggregateId") UUID aggregateId) {
+    public void getCounter(@PathParam("aggregateId") UUID aggregateId, @Suspended AsyncResponse asyncResponse) {
         log.debug(aggregateId);
-        Collection<DomainEvent> events = eventStore.read(aggregateId);
-        log.debug(events);
+        AsyncResponses.resume(asyncResponse, eventStore.readAsync(aggregateId).thenApply(events -> {
+            log.debug(events);
+            return Response.ok(new GenericEntity<Collection<DomainEvent>>(events) {})
+                           .build();
+        }));
+    }
+
+    // newline delimited JSON: events are written one by one right from event log into response as they are read
+    @GET
+    @Path("{aggregateId}")
+    @Produces(APPLICATION_NDJSON)
+    public Response streamCounter(@PathParam("aggregateId") UUID aggregateId,
+                                  @QueryParam("fromVersion") @DefaultValue("0") long fromVersion,
+                                  @QueryParam("limit") @DefaultValue("" + Long.MAX_VALUE) long limit) {
+        log.debug("streaming {} from {} (limit {})", aggregateId, fromVersion, limit);
+        StreamingOutput events = output -> eventStore.stream(aggregateId, fromVersion, limit, output);
         return Response.ok(events)
                        .build();
     }
 
     @GET
     @Path("{aggregateId}/collection")
-    public Collection<DomainEvent> getCounterCollection(@PathParam("aggregateId") UUID aggregateId) {
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getCounterCollection(@PathParam("aggregateId") UUID aggregateId,
+                                     @Suspended AsyncResponse asyncResponse) {
         require.apply(aggregateId, "aggregateId is require");
-        return eventStore.read(aggregateId);
+        AsyncResponses.resume(asyncResponse, eventStore.readAsync(aggregateId).thenApply(
+                events -> new GenericEntity<Collection<DomainEvent>>(events) {}));
     }
 
+    // whole collection is validated first, then events of each aggregate are written at once
     @POST
     @Path("collection")
-    public Response getCounterCollection(Collection<DomainEvent> events) {
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getCounterCollection(Collection<DomainEvent> events, @Suspended AsyncResponse asyncResponse) {
         require.apply(events, "events is require");
-        for (DomainEvent domainEvent : events) {
-            require.apply(domainEvent.getAggregateId(), "aggregateId is require");
-            eventStore.append(domainEvent);
-        }
-        // eventStore.appendAll(events.toArray(new DomainEvent[0]));
-        return Response.accepted()
-                       .entity(Json.createObjectBuilder()
-                                   .add("result", "all good")
-                                   .build())
-                       .build();
+        AsyncResponses.resume(asyncResponse, eventStore.appendBatchAsync(events).thenApply(versions -> {
+            JsonObjectBuilder aggregates = Json.createObjectBuilder();
+            versions.forEach((aggregateId, version) -> aggregates.add(aggregateId.toString(), version));
+            return Response.accepted()
+                           .entity(Json.createObjectBuilder()
+                                       .add("result", "all good")
+                                       .add("versions", aggregates)
+                                       .build())
+                           .build();
+        }));
     }
 
+    // page of stored aggregates sorted by aggregateId, next is aggregateId to continue after (absent on the last page)
     @GET
-    public Response findAll() {
-        return Response.ok(eventStore.findAll())
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response findAll(@QueryParam("after") UUID after,
+                            @QueryParam("limit") @DefaultValue("100") int limit) {
+        if (limit < 1 || limit > 1000) throw new IllegalArgumentException("limit must be between 1 and 1000");
+        List<UUID> aggregateIds = eventStore.findAll(after, limit, aggregateId -> true);
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("aggregateIds", aggregateIds);
+        if (aggregateIds.size() == limit) page.put("next", aggregateIds.get(limit - 1));
+        return Response.ok(page)
                        .build();
     }
 
     @DELETE
-    public Response cleanup() {
-        eventStore.cleanupAll();
-        return Response.accepted()
-                       .entity(Json.createObjectBuilder()
-                                   .add("result", "event store cleared")
-                                   .build())
-                       .build();
+    @Produces(MediaType.APPLICATION_JSON)
+    public void cleanup(@Suspended AsyncResponse asyncResponse) {
+        AsyncResponses.resume(asyncResponse, eventStore.cleanupAllAsync().thenApply(
+                cleared -> Response.accepted()
+                                   .entity(Json.createObjectBuilder()
+                                               .add("result", "event store cleared")
+                                               .build())
+                                   .build()));
     }
 }
@@ -0,0 +1,105 @@
+package daggerok.eventstore;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Server-Sent Event rendered into its wire format right away (comment, event, id and data lines), so it's serialized
+ * only once no matter how many subscribers it's sent to, and {@link EventStreamFrameWriter} writes it into response
+ * in one piece.
+ * <p>
+ * Jersey own OutboundEventWriter writes event data byte by byte, and each write is a separate chunk queued for netty.
+ */
+public class EventStreamFrame implements OutboundSseEvent {
+
+    private final String id;
+    private final String name;
+    private final String comment;
+    private final String data;
+    private final byte[] bytes;
+
+    private EventStreamFrame(String id, String name, String comment, String data) {
+        this.id = id;
+        this.name = name;
+        this.comment = comment;
+        this.data = data;
+        this.bytes = render().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static EventStreamFrame event(String id, String name, String json) {
+        return new EventStreamFrame(Objects.requireNonNull(id, "id may not be null"), name,
+                                    null, Objects.requireNonNull(json, "data may not be null"));
+    }
+
+    public static EventStreamFrame comment(String comment) {
+        return new EventStreamFrame(null, null, Objects.requireNonNull(comment, "comment may not be null"), null);
+    }
+
+    // whole frame, except of blank line delimiter written by Jersey sink after every event
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getComment() {
+        return comment;
+    }
+
+    @Override
+    public long getReconnectDelay() {
+        return RECONNECT_NOT_SET;
+    }
+
+    @Override
+    public boolean isReconnectDelaySet() {
+        return false;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return String.class;
+    }
+
+    @Override
+    public Type getGenericType() {
+        return String.class;
+    }
+
+    @Override
+    public MediaType getMediaType() {
+        return MediaType.APPLICATION_JSON_TYPE;
+    }
+
+    @Override
+    public String getData() {
+        return data;
+    }
+
+    /* Private API */
+
+    private String render() {
+        StringBuilder frame = new StringBuilder();
+        if (Objects.nonNull(comment)) lines(frame, ": ", comment);
+        if (Objects.nonNull(name)) frame.append("event: ").append(name).append('\n');
+        if (Objects.nonNull(id)) frame.append("id: ").append(id).append('\n');
+        if (Objects.nonNull(data)) lines(frame, "data: ", data);
+        return frame.toString();
+    }
+
+    private static void lines(StringBuilder frame, String prefix, String value) {
+        for (String line : value.split("\n", -1)) frame.append(prefix).append(line).append('\n');
+    }
+}
@@ -0,0 +1,31 @@
+package daggerok.eventstore;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+// writes already rendered SSE frame as is, it's called by Jersey sink on EventBroadcaster sender threads
+@Provider
+@ApplicationScoped
+@Produces(MediaType.SERVER_SENT_EVENTS)
+public class EventStreamFrameWriter implements MessageBodyWriter<EventStreamFrame> {
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return EventStreamFrame.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public void writeTo(EventStreamFrame frame, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType, MultivaluedMap<String, Object> httpHeaders,
+                        OutputStream entityStream) throws IOException {
+        entityStream.write(frame.getBytes());
+    }
+}
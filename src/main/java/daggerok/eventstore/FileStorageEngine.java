@@ -0,0 +1,387 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import daggerok.domain.Counter;
+import io.vavr.Predicates;
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Collections.singletonList;
+
+/**
+ * A dead simple storage:
+ * target
+ * |
+ * +- db
+ * |
+ * +- 0000000-0000-0000-0000-000000000000.json.log
+ * ...
+ * +- 0000000-0000-0000-0000-00000000000N.json.log
+ * db file per aggregate...
+ * <p>
+ * Snapshots: we will have file store like this:
+ * target
+ * |
+ * +- db
+ * |
+ * +- 0000000-0000-0000-0000-000000000000.json.log      (operational append only log)
+ * +- 0000000-0000-0000-0000-000000000000.past.json.log (past source of true batch append only log)
+ * +- 0000000-0000-0000-0000-000000000000.snapshot.json (snapshot aggregate state built from past eventlog)
+ * ...
+ * +- 0000000-0000-0000-0000-00000000000N.json.log
+ * +- 0000000-0000-0000-0000-00000000000N.past.json.log
+ * +- 0000000-0000-0000-0000-00000000000N.snapshot.json
+ * <p>
+ * here we have 3 files for each aggregate:
+ * - *.json.log is using currently for new events appending (can be empty or missing from beginning, until first event will be stored)
+ * - *.snapshot.json latest created snapshot of an aggregate (can contains empty JSON object: '{}' or object like this '{"value":0, "values":[]}')
+ * - *.past.json.log contains all aggregate events where used to build current snapshot (can be empty from beginning until first snapshot is built)
+ * <p>
+ * to implement snapshots, we can agreed on next: if snapshot has been triggered with current aggregate value:
+ * - all data must be transferred from: ${UUID}.json.log into (appended): ${UUID}.past.json.log
+ * - given even must be placed (replaced) into cleared ${UUID}.json.log
+ * - snapshot data file must be placed (replaced) into: ${UUID}.snapshot.json
+ * <p>
+ * now we must finally change way of how to read from event store:
+ * 1. recreate counter since last snapshot:
+ * Counter(${UUID}.snapshot.json).apply(${UUID}.json.log) -> Counter State
+ * 2. recreate counter from beginning of the times:
+ * Counter(empty {} snapshot).apply(${UUID}.past.json.log, -> ${UUID}.json.log) -> Counter State
+ * <p>
+ * snapshot file also records aggregate version and ${UUID}.past.json.log size (offset) at the moment it was taken,
+ * so option 1 only replays events after that offset
+ * <p>
+ * crash recovery: every append ends with new line, so anything after last new line of event log is a torn record
+ * of interrupted append. on open torn tail of each log is truncated, only tail is read (backwards, block by block
+ * until last new line is found), never whole file.
+ * <p>
+ * records are not framed nor checksummed (log stays plain JSON lines), so corrupted record which still ends with new
+ * line is not detected: {@link SegmentStorageEngine} (default engine) is the one to use if that matters.
+ */
+@Log4j2
+public class FileStorageEngine implements StorageEngine {
+
+    private static final byte[] NEW_LINE = { '\n' };
+    private static final int TAIL_BLOCK_SIZE = 4 * 1024;
+    // some file systems are keeping modification time with 2 seconds granularity
+    private static final long MODIFIED_TIME_GRANULARITY_MILLIS = 2000;
+
+    private final Path dbBasePath;
+    private final ObjectReader snapshotReader;
+    private final ObjectWriter snapshotWriter;
+    private final boolean memoryMapped;
+
+    public FileStorageEngine(Path dbBasePath, ObjectMapper objectMapper) {
+        this(dbBasePath, objectMapper, false);
+    }
+
+    // memoryMapped: read event logs through memory mapped buffers instead of buffered readers
+    public FileStorageEngine(Path dbBasePath, ObjectMapper objectMapper, boolean memoryMapped) {
+        this.dbBasePath = dbBasePath;
+        this.snapshotReader = objectMapper.readerFor(Snapshot.class);
+        this.snapshotWriter = objectMapper.writerFor(Snapshot.class);
+        this.memoryMapped = memoryMapped;
+    }
+
+    // step 1: create db directory if missing
+    // step 2: truncate torn tails of all event logs left by crash, if any
+    @Override
+    public void open() {
+        Path dbDir = dbBasePath.toAbsolutePath();
+        if (Files.notExists(dbDir, LinkOption.NOFOLLOW_LINKS)) {
+            Try.run(() -> Files.createDirectories(dbDir))
+               .getOrElseThrow(this::reThrow);
+        }
+        Try.run(() -> {
+            try (DirectoryStream<Path> eventLogs = Files.newDirectoryStream(dbDir, "*.json.log")) {
+                for (Path eventLog : eventLogs) truncateTornTail(eventLog);
+            }
+        }).getOrElseThrow(this::reThrow);
+    }
+
+    // step 1: find file by filename "${aggregateId}.past.json.log"
+    // stream it's content starting from snapshot offset if snapshot is not newer than requested version...
+    // step 1: find file by filename "${aggregateId}.json.log"
+    // stream it's content too...
+    // step 2: skip records between snapshot and requested versions
+    // missing files are read as empty: read of unknown aggregate never creates any file, so it's not listed later
+    @Override
+    public Stream<byte[]> read(UUID aggregateId, long fromVersion) {
+        Optional<Snapshot> snapshot = readSnapshot(aggregateId).filter(s -> s.getVersion() <= fromVersion);
+        long offset = snapshot.map(Snapshot::getOffset).orElse(0L);
+        long skip = fromVersion - snapshot.map(Snapshot::getVersion).orElse(0L);
+        Path pastEventLog = getDbFilePath(aggregateId, ".past.json.log");
+        Path eventLog = getDbFilePath(aggregateId, ".json.log");
+        return Stream.concat(lines(pastEventLog, offset), lines(eventLog, 0L))
+                     .skip(skip);
+    }
+
+    // step 1: find file by filename "${aggregateId}.json.log"
+    //   - if file doesn't exists -> create new one
+    // step 2: append all records, line by line into end of the "${aggregateId}.json.log" file by single gathering
+    // write: records are wrapped as they are, without copying them into one more buffer
+    @Override
+    public void append(UUID aggregateId, List<byte[]> records) {
+        Path eventLog = createAndGetDbFilePath(aggregateId, ".json.log");
+        ByteBuffer[] buffers = new ByteBuffer[records.size() * 2];
+        for (int i = 0; i < records.size(); i++) {
+            buffers[2 * i] = ByteBuffer.wrap(records.get(i));
+            buffers[2 * i + 1] = ByteBuffer.wrap(NEW_LINE);
+        }
+        Try.run(() -> {
+            try (FileChannel channel = FileChannel.open(eventLog, WRITE, APPEND)) {
+                while (buffers.length > 0 && buffers[buffers.length - 1].hasRemaining()) channel.write(buffers);
+            }
+        }).getOrElseThrow(this::reThrow);
+    }
+
+    // snapshot version + amount of records written after snapshot
+    @Override
+    public long version(UUID aggregateId) {
+        long snapshotVersion = readSnapshot(aggregateId).map(Snapshot::getVersion).orElse(0L);
+        try (Stream<byte[]> tail = read(aggregateId, snapshotVersion)) {
+            return snapshotVersion + tail.count();
+        }
+    }
+
+    // snapshot file may be missing, empty, or written in a legacy format (plain aggregate JSON without version and
+    // offset), in all that cases we cannot tell which events are not yet folded, so we are going to replay everything
+    @Override
+    public Optional<Snapshot> readSnapshot(UUID aggregateId) {
+        Path snapshotFile = getDbFilePath(aggregateId, ".snapshot.json");
+        if (Files.notExists(snapshotFile, LinkOption.NOFOLLOW_LINKS)) return Optional.empty();
+        return Try.of(() -> Files.readAllBytes(snapshotFile))
+                  .filter(bytes -> bytes.length > 0)
+                  .mapTry(bytes -> snapshotReader.<Snapshot>readValue(bytes))
+                  .onFailure(e -> log.warn("ignoring snapshot of {}: {}", aggregateId, e.getLocalizedMessage()))
+                  .toJavaOptional();
+    }
+
+    @Override
+    public void snapshot(long version, Counter aggregate) {
+        UUID aggregateId = aggregate.getAggregateId();
+        // crete ${aggregateId}.past.json.log
+        Path pastEventLog = createAndGetDbFilePath(aggregateId, ".past.json.log");
+        // read ${aggregateId}.json.log file and append everything from it into ${aggregateId}.past.json.log
+        Path eventLog = createAndGetDbFilePath(aggregateId, ".json.log");
+        Try.of(() -> Files.readAllBytes(eventLog))
+           .andThenTry(bytes -> Files.write(pastEventLog, bytes, APPEND))
+           .getOrElseThrow(this::reThrow);
+        // // that just doesn't worked (truncate ${aggregateId}.json.log file) see deletion workaround...
+        // Try.run(() -> Files.write(eventLog, new byte[0], StandardOpenOption.TRUNCATE_EXISTING));
+        // remove ${aggregateId}.json.log file
+        Try.run(() -> Files.deleteIfExists(eventLog))
+           .getOrElseThrow(this::reThrow);
+        // serialize aggregate into json and replace with it content of ${aggregateId}.snapshot.json file
+        // snapshot is written last, so its offset covers exactly everything what was moved into past log
+        long offset = Try.of(() -> Files.size(pastEventLog))
+                         .getOrElseThrow(this::reThrow);
+        saveSnapshot(new Snapshot(version, offset, aggregate));
+    }
+
+    // - find all files in db folder with suffixed filter
+    // - take all it's filenames
+    // - remove suffix part from each filename
+    // - map it into UUID
+    // - collect result into list
+    // aggregate which was only appended so far has no past log yet, so operational logs are taken into account too
+    // empty logs are skipped: they were created by reads of unknown aggregates, aggregate with events has at least
+    // one non empty log
+    @Override
+    public Collection<UUID> findAll() {
+        File dbDir = dbBasePath.toAbsolutePath().toFile();
+        Predicate<String> nonEmptyLog = filename -> filename.endsWith(".json.log")
+                && new File(dbDir, filename).length() > 0;
+        return findAllBy(nonEmptyLog).stream()
+                                     .distinct()
+                                     .collect(Collectors.toList());
+    }
+
+    // current time: logs of aggregates appended after it are modified after it
+    @Override
+    public long appendMark() {
+        return System.currentTimeMillis();
+    }
+
+    // aggregates with any log modified since given append mark (snapshot moves operational log into past log, which
+    // is modified by that too)
+    @Override
+    public Collection<UUID> findAppendedSince(long mark) {
+        File dbDir = dbBasePath.toAbsolutePath().toFile();
+        Predicate<String> modifiedLog = filename -> filename.endsWith(".json.log")
+                && new File(dbDir, filename).lastModified() >= mark - MODIFIED_TIME_GRANULARITY_MILLIS;
+        return findAllBy(modifiedLog).stream()
+                                     .distinct()
+                                     .collect(Collectors.toList());
+    }
+
+    public Collection<UUID> findAllBy(Predicate<String> filenamePredicate) {
+        String[] files = dbBasePath.toAbsolutePath().toFile().list(
+                (dir, filename) -> filenamePredicate.test(filename));
+        log.debug("found {} files", Optional.ofNullable(files).map(array -> array.length).orElse(0));
+        return Optional.ofNullable(files)
+                       .map(Arrays::stream)
+                       .orElse(Stream.empty())
+                       .map(filename -> filename.replace(".past.json.log", "").replace(".json.log", ""))
+                       .map(UUID::fromString)
+                       .collect(Collectors.toList());
+    }
+
+    // - stream all absolute db paths in db folder
+    // - remove if any exists
+    @Override
+    public void cleanupAll() {
+        log.debug("clearing all *.json* files...");
+        cleanupBy(entry -> entry.toString().contains(".json"));
+    }
+
+    public void cleanupBy(DirectoryStream.Filter<Path> pathFilter) {
+        Try.run(() -> {
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(dbBasePath.toAbsolutePath(), pathFilter)) {
+                for (Path path : paths) {
+                    log.debug("trying remove {} file from event store", path);
+                    Files.deleteIfExists(path);
+                }
+            }
+        }).onFailure(e -> log.error(e.getLocalizedMessage(), e));
+    }
+
+    @Override
+    public void close() {
+        log.debug("nothing to close, files are opened per operation");
+    }
+
+    /* Private API */
+
+    private void saveSnapshot(Snapshot snapshot) {
+        Objects.requireNonNull(snapshot);
+        Path snapshotFile = createAndGetDbFilePath(snapshot.getAggregate().getAggregateId(), ".snapshot.json");
+        Try.of(() -> snapshotWriter.writeValueAsString(snapshot))
+           .andThenTry(json -> Files.write(snapshotFile, singletonList(json)))
+           .getOrElseThrow(this::reThrow);
+    }
+
+    // find last new line, reading file backwards by small blocks, and cut off everything after it
+    private void truncateTornTail(Path eventLog) throws IOException {
+        try (FileChannel channel = FileChannel.open(eventLog, READ, WRITE)) {
+            long size = channel.size();
+            long end = size;
+            long complete = 0;
+            ByteBuffer block = ByteBuffer.allocate(TAIL_BLOCK_SIZE);
+            while (end > 0 && complete == 0) {
+                long from = Math.max(0, end - TAIL_BLOCK_SIZE);
+                block.clear().limit((int) (end - from));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, from + block.position()) < 0) break;
+                }
+                for (int i = block.position() - 1; i >= 0; i--) {
+                    if (block.get(i) == '\n') {
+                        complete = from + i + 1;
+                        break;
+                    }
+                }
+                end = from;
+            }
+            if (complete < size) {
+                log.warn("{} has torn record at {} (size: {}), truncating", eventLog.getFileName(), complete, size);
+                channel.truncate(complete);
+            }
+        }
+    }
+
+    private Stream<byte[]> lines(Path path, long offset) {
+        if (Files.notExists(path, LinkOption.NOFOLLOW_LINKS)) return Stream.empty();
+        return memoryMapped ? MappedLines.of(path, offset).orElseGet(() -> readerLines(path, offset))
+                            : readerLines(path, offset);
+    }
+
+    // log is read only up to its size at the moment it's opened: snapshot may be appending to it meanwhile
+    private Stream<byte[]> readerLines(Path path, long offset) {
+        BufferedReader reader = Try.of(() -> FileChannel.open(path, StandardOpenOption.READ).position(offset))
+                                   .mapTry(channel -> new BoundedChannel(channel, channel.size()))
+                                   .map(channel -> new BufferedReader(Channels.newReader(channel, UTF_8)))
+                                   .getOrElseThrow(this::reThrow);
+        return reader.lines()
+                     .onClose(() -> Try.run(reader::close))
+                     .filter(Objects::nonNull)
+                     .map(String::trim)
+                     .filter(Predicates.not(String::isEmpty))
+                     .map(line -> line.getBytes(UTF_8));
+    }
+
+    private Path createAndGetDbFilePath(UUID aggregateId, String suffix) {
+        Path dbFilePath = getDbFilePath(aggregateId, suffix);
+        if (Files.notExists(dbFilePath, LinkOption.NOFOLLOW_LINKS)) {
+            // file may be created meanwhile, whoever is first creates it
+            Try.run(() -> Files.createFile(dbFilePath))
+               .recover(FileAlreadyExistsException.class, e -> null)
+               .getOrElseThrow(this::reThrow);
+        }
+        return dbFilePath;
+    }
+
+    private Path getDbFilePath(UUID aggregateId, String suffix) {
+        Objects.requireNonNull(aggregateId);
+        String logFilename = String.format("%s%s", aggregateId.toString(), suffix);
+        String absoluteParentPath = dbBasePath.toAbsolutePath().toString();
+        return Paths.get(absoluteParentPath, logFilename);
+    }
+
+    private RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+
+    // file channel which ends at given position, no matter how much is appended to file afterwards
+    private static class BoundedChannel implements ReadableByteChannel {
+
+        private final FileChannel channel;
+        private final long end;
+
+        private BoundedChannel(FileChannel channel, long end) {
+            this.channel = channel;
+            this.end = end;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            long remaining = end - channel.position();
+            if (remaining <= 0) return -1;
+            if (buffer.remaining() <= remaining) return channel.read(buffer);
+            ByteBuffer slice = buffer.slice();
+            slice.limit((int) remaining);
+            int read = channel.read(slice);
+            if (read > 0) buffer.position(buffer.position() + read);
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package daggerok.eventstore;
+
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Group commit pipeline: concurrent callers are enqueueing write requests, single writer thread takes them in groups
+ * (up to maxBatchSize requests, waiting at most lingerMillis for a group to fill up after its first request) and
+ * hands every group to batch writer at once, so whole group is written and forced to disk together. Caller futures
+ * are completed only after batch writer is done with their group (so if batch writer forces data to disk, futures
+ * are completed when data is durable).
+ */
+@Log4j2
+class GroupCommitter<T> implements Closeable {
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final Consumer<List<T>> batchWriter;
+    private final BlockingQueue<Request<T>> queue;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    GroupCommitter(String name, int maxBatchSize, long lingerMillis, Consumer<List<T>> batchWriter) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.batchWriter = batchWriter;
+        this.queue = new ArrayBlockingQueue<>(this.maxBatchSize * 16);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // blocks caller if writer is too far behind (queue is full)
+    // committer may be closed right between running check and put: writer thread and close may be both done with the
+    // queue by then, so request which is still there is taken back and failed (otherwise one of them has taken it and
+    // is going to complete it)
+    CompletableFuture<Void> submit(T item) {
+        if (!running) throw new IllegalStateException(String.format("%s is closed", thread.getName()));
+        Request<T> request = new Request<>(item);
+        Try.run(() -> queue.put(request))
+           .onFailure(request.future::completeExceptionally);
+        if (!running && queue.remove(request)) request.future.completeExceptionally(
+                new IllegalStateException(String.format("%s is closed", thread.getName())));
+        return request.future;
+    }
+
+    // stop accepting new requests, write everything what was already submitted and wait for writer thread
+    // keep in mind: writer thread is never interrupted, otherwise file channel it's writing to would be closed
+    @Override
+    public void close() {
+        running = false;
+        Try.run(thread::join)
+           .onFailure(e -> log.warn("interrupted while waiting for {}", thread.getName()));
+        List<Request<T>> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        leftovers.forEach(request -> request.future.completeExceptionally(
+                new IllegalStateException(String.format("%s is closed", thread.getName()))));
+    }
+
+    private void run() {
+        List<Request<T>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            Try.run(() -> collect(batch))
+               .onFailure(e -> log.warn("{} interrupted", thread.getName()));
+            if (batch.isEmpty()) continue;
+            List<T> items = new ArrayList<>(batch.size());
+            for (Request<T> request : batch) items.add(request.item);
+            Try.run(() -> batchWriter.accept(items))
+               .onSuccess(ignored -> batch.forEach(request -> request.future.complete(null)))
+               .onFailure(e -> batch.forEach(request -> request.future.completeExceptionally(e)));
+            batch.clear();
+        }
+        log.debug("{} stopped", thread.getName());
+    }
+
+    // take first request (waiting for it a bit), then keep taking more until batch is full or linger time is over
+    private void collect(List<Request<T>> batch) throws InterruptedException {
+        Request<T> first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) return;
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0 || !running) break;
+            Request<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+        }
+    }
+
+    private static class Request<T> {
+
+        private final T item;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Request(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package daggerok.eventstore;
+
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Dedicated executor of blocking {@link EventStore} file I/O, so request threads are never waiting for disk: they only
+ * suspend request and it's resumed by I/O thread when it's done.
+ * <p>
+ * Executor is bounded: at most threads tasks are running at a time and at most queueSize tasks are waiting, any
+ * other task is rejected right away (RejectedExecutionException, 503 Service Unavailable), so slow disk never piles
+ * up unbounded amount of suspended requests. On JDK with virtual threads (21+), tasks are running on virtual threads
+ * (still at most threads of them at a time), otherwise on fixed pool of platform daemon threads.
+ * <p>
+ * Configuration:
+ * - eventStore.io.threads
+ * - eventStore.io.queueSize
+ * - eventStore.io.virtualThreads (used only if JDK supports them)
+ */
+@Log4j2
+@ApplicationScoped
+public class IoExecutor {
+
+    private int threads;
+    private int queueSize;
+    private boolean virtualThreads;
+    private boolean callerRuns;
+
+    private Semaphore running;
+    private Semaphore admitted;
+    private volatile ExecutorService executor;
+
+    IoExecutor() {} // proxy...
+
+    @Inject
+    public IoExecutor(Map<String, String> config) {
+        this(Integer.parseInt(config.getOrDefault("eventStore.io.threads", "16")),
+             Integer.parseInt(config.getOrDefault("eventStore.io.queueSize", "1024")),
+             Boolean.parseBoolean(config.getOrDefault("eventStore.io.virtualThreads", "true")));
+    }
+
+    public IoExecutor(int threads, int queueSize, boolean virtualThreads) {
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(0, queueSize);
+        this.virtualThreads = virtualThreads;
+    }
+
+    // executor running every task right on caller thread (used by event store created outside of CDI container)
+    public static IoExecutor callerRuns() {
+        IoExecutor callerRuns = new IoExecutor(1, 0, false);
+        callerRuns.callerRuns = true;
+        return callerRuns;
+    }
+
+    // runs given blocking call on I/O thread, returned stage is completed by its result (on that thread)
+    public <T> CompletionStage<T> submit(Supplier<T> blockingCall) {
+        if (callerRuns) return Try.ofSupplier(blockingCall)
+                                  .fold(CompletableFuture::failedFuture, CompletableFuture::completedFuture);
+        start();
+        if (!admitted.tryAcquire()) return CompletableFuture.failedFuture(new RejectedExecutionException(
+                String.format("too many pending I/O tasks: %d", threads + queueSize)));
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Try.run(() -> executor.execute(() -> {
+            Try<T> outcome;
+            running.acquireUninterruptibly();
+            try {
+                outcome = Try.ofSupplier(blockingCall);
+            } finally {
+                running.release();
+                admitted.release();
+            }
+            // dependent stages (like resuming of suspended request) are not holding I/O permits
+            outcome.fold(result::completeExceptionally, result::complete);
+        })).onFailure(e -> {
+            admitted.release();
+            result.completeExceptionally(e);
+        });
+        return result;
+    }
+
+    public boolean isVirtualThreads() {
+        return Objects.nonNull(executor) && virtualThreads;
+    }
+
+    // tasks running or waiting for I/O thread
+    public int getPending() {
+        return Objects.isNull(admitted) ? 0 : threads + queueSize - admitted.availablePermits();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (Objects.isNull(executor)) return;
+        executor.shutdown();
+        Try.run(() -> executor.awaitTermination(10, TimeUnit.SECONDS))
+           .onFailure(e -> log.warn("interrupted while waiting for I/O tasks"));
+    }
+
+    /* Private API */
+
+    // executor is started lazily by first task, semaphores are published by volatile executor write
+    private void start() {
+        if (Objects.nonNull(executor)) return;
+        synchronized (this) {
+            if (Objects.nonNull(executor)) return;
+            running = new Semaphore(threads);
+            admitted = new Semaphore(threads + queueSize);
+            ExecutorService virtual = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+            virtualThreads = Objects.nonNull(virtual);
+            // pool threads are bounded by semaphores, so its queue never holds more than queueSize tasks
+            executor = virtualThreads ? virtual : Executors.newFixedThreadPool(threads, daemon("event-store-io"));
+        }
+        log.info("running event store I/O on {} threads ({} queued at most)",
+                 virtualThreads ? threads + " virtual" : threads, queueSize);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively: sources are still targeting JDK 11
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        return Try.of(() -> (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                                                             .invoke(null))
+                  .onFailure(e -> log.debug("virtual threads are not supported: {}", e.toString()))
+                  .getOrNull();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,82 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import daggerok.eventstore.events.DomainEvent;
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Default JSON event codec with streaming serialization: event is written by Jackson JsonGenerator right into per
+ * thread reusable buffer, so there is no intermediate String and no parsing it back to check type discriminator. Type
+ * discriminator is validated upfront against DomainEvent @JsonTypeInfo / @JsonSubTypes metadata instead: only
+ * registered event types can be read back from event log, so nothing else is accepted.
+ */
+@Log4j2
+public class JsonEventCodec implements EventCodec {
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final String TYPE_PROPERTY = DomainEvent.class.getAnnotation(JsonTypeInfo.class).property();
+    private static final Map<Class<?>, String> TYPE_NAMES = Collections.unmodifiableMap(
+            Arrays.stream(DomainEvent.class.getAnnotation(JsonSubTypes.class).value())
+                  .collect(Collectors.toMap(JsonSubTypes.Type::value, JsonSubTypes.Type::name)));
+
+    private final ObjectReader objectReader;
+    private final ObjectWriter objectWriter;
+    private final ThreadLocal<ByteArrayOutputStream> buffers =
+            ThreadLocal.withInitial(() -> new ByteArrayOutputStream(INITIAL_BUFFER_SIZE));
+
+    public JsonEventCodec(ObjectMapper objectMapper) {
+        this.objectReader = objectMapper.readerFor(DomainEvent.class);
+        this.objectWriter = objectMapper.writerFor(DomainEvent.class);
+    }
+
+    // step 1: make sure event type is registered, so its type discriminator will be written and could be read back
+    // step 2: write event into reusable buffer of current thread
+    // step 3: copy exactly serialized bytes out (buffer grown too much by some huge event is not kept in pool)
+    @Override
+    public byte[] encode(DomainEvent domainEvent) {
+        if (!TYPE_NAMES.containsKey(domainEvent.getClass())) throw new IllegalArgumentException(
+                String.format("event %s is unknown: %s", TYPE_PROPERTY, domainEvent.getClass().getName()));
+        ByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        Try.run(() -> {
+            try (JsonGenerator generator = objectWriter.createGenerator(buffer)) {
+                objectWriter.writeValue(generator, domainEvent);
+            }
+        }).getOrElseThrow(JsonEventCodec::reThrow);
+        byte[] record = buffer.toByteArray();
+        if (record.length > MAX_POOLED_BUFFER_SIZE) buffers.remove();
+        return record;
+    }
+
+    @Override
+    public DomainEvent decode(byte[] record) {
+        return Try.<DomainEvent>of(() -> objectReader.readValue(record))
+                  .getOrElseThrow(JsonEventCodec::reThrow);
+    }
+
+    @Override
+    public boolean isJson() {
+        return true;
+    }
+
+    /* Private API */
+
+    private static RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+}
@@ -0,0 +1,93 @@
+package daggerok.eventstore;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * In memory ring buffer of latest events of $all stream, so live subscribers are getting just appended events
+ * without re-reading them from disk (same ring buffer is used by {@link EventBroadcaster} for its serialized frames).
+ * <p>
+ * Single producer ({@link AllStream} publishes events one by one in position order) and many consumers: each consumer
+ * keeps its own next position and reads slots without any locks. Event in slot is overwritten when producer wraps
+ * around, so consumer which fell more than capacity events behind is told its position is not available anymore (it
+ * must catch up from disk).
+ */
+class LiveEvents<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final ToLongFunction<T> positionOf;
+    private final int mask;
+    private final Object monitor = new Object();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private volatile long oldest; // position buffer was started from, older events were never published here
+    private volatile long published; // position of next event to be published
+
+    // capacity is rounded up to the power of two
+    LiveEvents(int capacity, long position, ToLongFunction<T> positionOf) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.positionOf = positionOf;
+        this.mask = size - 1;
+        reset(position);
+    }
+
+    // start over from given position, must not be called concurrently with publish
+    void reset(long position) {
+        for (int i = 0; i < slots.length(); i++) slots.set(i, null);
+        oldest = position;
+        published = position;
+    }
+
+    // must be called by single thread, in position order
+    void publish(T event) {
+        long position = positionOf.applyAsLong(event);
+        slots.lazySet((int) (position & mask), event);
+        published = position + 1;
+        if (waiting.get() > 0) synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    // event at given position, empty if it's not published yet or already overwritten (see isAvailable)
+    Optional<T> get(long position) {
+        if (!isAvailable(position) || position >= published) return Optional.empty();
+        T event = slots.get((int) (position & mask));
+        // producer may overwrite slot right between available check and read
+        return Optional.ofNullable(event).filter(e -> positionOf.applyAsLong(e) == position);
+    }
+
+    // false if given position is already overwritten by newer events (or it's from before buffer was started)
+    boolean isAvailable(long position) {
+        return position >= Math.max(oldest, published - slots.length());
+    }
+
+    long getPublished() {
+        return published;
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+
+    // wait until event at given position is published, returns false on timeout
+    boolean await(long position, long timeout, TimeUnit unit) throws InterruptedException {
+        if (position < published) return true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiting.incrementAndGet();
+        try {
+            synchronized (monitor) {
+                long remaining;
+                while (position >= published && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        return position < published;
+    }
+}
@@ -0,0 +1,85 @@
+package daggerok.eventstore;
+
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lines of event log file read through memory mapped buffer: newline boundaries are scanned right in mapped memory
+ * and every line is copied out as bytes only once, there is no charset decoding and no String per line. Same as
+ * buffered reader lines, surrounding whitespaces are trimmed and blank lines are skipped.
+ * <p>
+ * Single mapping cannot be larger than 2 GB, so bigger files are not mapped at all (caller falls back to reader).
+ */
+@Log4j2
+class MappedLines extends Spliterators.AbstractSpliterator<byte[]> {
+
+    private final MappedByteBuffer buffer;
+
+    private MappedLines(MappedByteBuffer buffer) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        this.buffer = buffer;
+    }
+
+    // empty if file is too big to be mapped at once
+    static Optional<Stream<byte[]>> of(Path path, long offset) {
+        return Try.withResources(() -> FileChannel.open(path, StandardOpenOption.READ))
+                  .of(channel -> {
+                      long size = Math.max(0, channel.size() - offset);
+                      if (size > Integer.MAX_VALUE) {
+                          log.debug("{} is too big to be mapped: {} bytes", path, size);
+                          return Optional.<Stream<byte[]>>empty();
+                      }
+                      // mapping stays valid after channel is closed
+                      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                      return Optional.of(StreamSupport.stream(new MappedLines(buffer), false));
+                  })
+                  .getOrElseThrow(MappedLines::reThrow);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super byte[]> action) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = start;
+            int limit = buffer.limit();
+            while (end < limit && buffer.get(end) != '\n') end++;
+            int next = end < limit ? end + 1 : end;
+            while (start < end && isWhitespace(buffer.get(start))) start++;
+            while (end > start && isWhitespace(buffer.get(end - 1))) end--;
+            if (start == end) {
+                buffer.position(next);
+                continue;
+            }
+            byte[] line = new byte[end - start];
+            buffer.position(start);
+            buffer.get(line);
+            buffer.position(next);
+            action.accept(line);
+            return true;
+        }
+        return false;
+    }
+
+    /* Private API */
+
+    // same as String.trim: every control character and space
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private static RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+}
@@ -0,0 +1,22 @@
+package daggerok.eventstore;
+
+import daggerok.eventstore.events.DomainEvent;
+import lombok.Data;
+
+import java.util.UUID;
+
+/**
+ * Domain event as it was recorded into $all stream:
+ * - position: global append order of event among events of all aggregates (0 - very first event)
+ * - aggregateId: aggregate event belongs to
+ * - version: aggregate version right after this event (1 - first event of aggregate)
+ * - event: domain event itself
+ */
+@Data
+public class RecordedEvent {
+
+    private final long position;
+    private final UUID aggregateId;
+    private final long version;
+    private final DomainEvent event;
+}
@@ -0,0 +1,247 @@
+package daggerok.eventstore;
+
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.Collectors;
+
+import static daggerok.eventstore.SegmentStorageEngine.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Persistent index of {@link SegmentStorageEngine}: aggregateId -> (segment, offset, length) of every aggregate event
+ * record, plus position of latest aggregate snapshot record.
+ * <p>
+ * On disk it's an append only segments.index file with fixed size entries:
+ * [byte kind][long aggregateId msb][long aggregateId lsb][long position (segment + offset)][int length]
+ * entries are appended right after records were written into segment, so index may only lag behind segments (never
+ * ahead of them), missing tail is restored by scanning segments from last indexed position on open.
+ * <p>
+ * If index file is missing or doesn't match segments (corrupt), it's rebuilt from segments from scratch.
+ */
+@Log4j2
+class SegmentIndex {
+
+    static final String FILENAME = "segments.index";
+    static final int ENTRY_SIZE = 1 + Long.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final Path indexPath;
+    private final Map<UUID, AggregatePositions> aggregates = new ConcurrentHashMap<>();
+
+    private FileChannel writer;
+    private long end = -1; // position right after last indexed record
+
+    SegmentIndex(Path dbBasePath) {
+        this.indexPath = dbBasePath.toAbsolutePath().resolve(FILENAME);
+    }
+
+    // step 1: read all complete entries of index file
+    // step 2: verify them against segment sizes, if anything is wrong, drop index, so it will be rebuilt by scan
+    // step 3: open index file for appends
+    // returns position right after last indexed record (or -1 if nothing indexed), segments must be scanned from it
+    long load(LongUnaryOperator segmentSize) {
+        boolean valid = Try.of(() -> read(segmentSize))
+                           .onFailure(e -> log.warn("segments index is corrupt: {}", e.getLocalizedMessage()))
+                           .getOrElse(false);
+        if (!valid) {
+            log.warn("rebuilding segments index from scratch...");
+            aggregates.clear();
+            end = -1;
+            Try.run(() -> Files.deleteIfExists(indexPath)).getOrElseThrow(SegmentIndex::reThrow);
+        }
+        long entries = aggregates.values().stream().mapToLong(AggregatePositions::entries).sum();
+        writer = Try.of(() -> FileChannel.open(indexPath, CREATE, WRITE))
+                    .andThenTry(channel -> channel.truncate(entries * ENTRY_SIZE))
+                    .andThenTry(channel -> channel.position(entries * ENTRY_SIZE))
+                    .getOrElseThrow(SegmentIndex::reThrow);
+        log.debug("loaded {} index entries of {} aggregates", entries, aggregates.size());
+        return end;
+    }
+
+    // index records written by one segment write, kind and aggregate are the same for all of them
+    synchronized void add(byte kind, UUID aggregateId, long[] positions, int[] lengths) {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            buffer.put(kind)
+                  .putLong(aggregateId.getMostSignificantBits())
+                  .putLong(aggregateId.getLeastSignificantBits())
+                  .putLong(positions[i])
+                  .putInt(lengths[i]);
+        }
+        buffer.flip();
+        Try.run(() -> {
+            while (buffer.hasRemaining()) writer.write(buffer);
+        }).getOrElseThrow(SegmentIndex::reThrow);
+        register(kind, aggregateId, positions, lengths);
+    }
+
+    Optional<AggregatePositions> get(UUID aggregateId) {
+        return Optional.ofNullable(aggregates.get(aggregateId));
+    }
+
+    Collection<UUID> aggregateIds() {
+        return aggregates.entrySet()
+                         .stream()
+                         .filter(entry -> entry.getValue().size() > 0)
+                         .map(Map.Entry::getKey)
+                         .collect(Collectors.toList());
+    }
+
+    // aggregates with event records at given position or after it
+    Collection<UUID> aggregateIdsSince(long position) {
+        return aggregates.entrySet()
+                         .stream()
+                         .filter(entry -> entry.getValue().last() >= position)
+                         .map(Map.Entry::getKey)
+                         .collect(Collectors.toList());
+    }
+
+    int size() {
+        return aggregates.size();
+    }
+
+    synchronized long end() {
+        return end;
+    }
+
+    synchronized void cleanup() {
+        close();
+        aggregates.clear();
+        end = -1;
+        Try.run(() -> Files.deleteIfExists(indexPath)).getOrElseThrow(SegmentIndex::reThrow);
+    }
+
+    synchronized void close() {
+        Optional.ofNullable(writer).ifPresent(channel -> Try.run(channel::close));
+    }
+
+    /* Private API */
+
+    private boolean read(LongUnaryOperator segmentSize) throws Exception {
+        if (Files.notExists(indexPath)) {
+            log.info("segments index not found");
+            return false;
+        }
+        try (InputStream inputStream = Files.newInputStream(indexPath);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(inputStream, 64 * 1024))) {
+            while (true) {
+                byte kind;
+                try {
+                    kind = data.readByte();
+                } catch (EOFException e) {
+                    return true;
+                }
+                UUID aggregateId;
+                long position;
+                int length;
+                try {
+                    aggregateId = new UUID(data.readLong(), data.readLong());
+                    position = data.readLong();
+                    length = data.readInt();
+                } catch (EOFException e) {
+                    log.warn("skipping partially written index entry");
+                    return true;
+                }
+                if (kind != EVENT && kind != SNAPSHOT) throw new IllegalStateException("unknown kind: " + kind);
+                if (position < end) throw new IllegalStateException("unordered position: " + position);
+                if (length < HEADER_SIZE) throw new IllegalStateException("wrong record length: " + length);
+                if (offsetOf(position) + length > segmentSize.applyAsLong(segmentOf(position)))
+                    throw new IllegalStateException("record is out of segment: " + position);
+                register(kind, aggregateId, new long[] { position }, new int[] { length });
+            }
+        }
+    }
+
+    private void register(byte kind, UUID aggregateId, long[] positions, int[] lengths) {
+        AggregatePositions aggregate = aggregates.computeIfAbsent(aggregateId, id -> new AggregatePositions());
+        if (kind == SNAPSHOT) aggregate.setSnapshot(positions[positions.length - 1],
+                                                    lengths[lengths.length - 1]);
+        else aggregate.addAll(positions, lengths);
+        int last = positions.length - 1;
+        end = Math.max(end, position(segmentOf(positions[last]), offsetOf(positions[last]) + lengths[last]));
+    }
+
+    private static RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+
+    // growable arrays of aggregate event record positions (segment + offset packed into long) and lengths, ordered
+    // by aggregate version
+    static class AggregatePositions {
+
+        private long[] positions = new long[4];
+        private int[] lengths = new int[4];
+        private int size;
+        private long snapshot = -1;
+        private int snapshotLength;
+        private int snapshots;
+
+        synchronized void addAll(long[] newPositions, int[] newLengths) {
+            if (size + newPositions.length > positions.length) {
+                int capacity = Math.max(positions.length * 2, size + newPositions.length);
+                positions = Arrays.copyOf(positions, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            System.arraycopy(newPositions, 0, positions, size, newPositions.length);
+            System.arraycopy(newLengths, 0, lengths, size, newLengths.length);
+            size += newPositions.length;
+        }
+
+        synchronized Slice from(long version) {
+            if (version >= size) return new Slice(new long[0], new int[0]);
+            return new Slice(Arrays.copyOfRange(positions, (int) version, size),
+                             Arrays.copyOfRange(lengths, (int) version, size));
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // position of the latest event record, -1 if there is none
+        synchronized long last() {
+            return size > 0 ? positions[size - 1] : -1L;
+        }
+
+        synchronized long getSnapshot() {
+            return snapshot;
+        }
+
+        synchronized int getSnapshotLength() {
+            return snapshotLength;
+        }
+
+        synchronized void setSnapshot(long snapshot, int snapshotLength) {
+            this.snapshot = snapshot;
+            this.snapshotLength = snapshotLength;
+            this.snapshots++;
+        }
+
+        synchronized long entries() {
+            return size + snapshots;
+        }
+    }
+
+    // positions and lengths of aggregate event records starting from some version
+    static class Slice {
+
+        final long[] positions;
+        final int[] lengths;
+
+        Slice(long[] positions, int[] lengths) {
+            this.positions = positions;
+            this.lengths = lengths;
+        }
+    }
+}
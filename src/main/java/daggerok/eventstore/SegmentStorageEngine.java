@@ -0,0 +1,402 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import daggerok.domain.Counter;
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * All aggregates are sharing few rolling append only segment files:
+ * target
+ * |
+ * +- db
+ * |
+ * +- 0000000000.segment.log
+ * +- 0000000001.segment.log
+ * ...
+ * +- 000000000N.segment.log (active segment, new records are appended here until it reaches max size)
+ * +- segments.index          (persistent per aggregate index, see {@link SegmentIndex})
+ * <p>
+ * each record is framed like so:
+ * [int length][int checksum][byte kind][long aggregateId msb][long aggregateId lsb][payload: length - 21 bytes]
+ * where kind is E (serialized event) or S (JSON snapshot) and checksum is CRC32C of everything after it (kind,
+ * aggregateId and payload). checksum is verified on every record read, so corrupted record is reported as such
+ * instead of being handed over to codec.
+ * <p>
+ * per aggregate index keeps positions and lengths of all aggregate events and its latest snapshot, so each record is
+ * read by single positional read without any scans. only records not yet indexed are scanned on open.
+ * <p>
+ * crash recovery: index is written after segment, so records which are not yet indexed are unflushed tail of the
+ * active segment. on open only that tail is scanned and each its record checksum is verified, first torn record
+ * (partially written length, payload or checksum mismatch) and everything after it are truncated, so recovery time
+ * is proportional to the tail, not to the whole store.
+ * <p>
+ * appends and snapshots are going through {@link GroupCommitter}: records of many concurrent callers are framed into
+ * one buffer, written by one write call and forced to disk by one force call per group.
+ * <p>
+ * Configuration:
+ * - eventStore.segment.maxSize (in bytes, 64 MB by default)
+ * - eventStore.segment.groupCommit.maxBatchSize (max amount of appends per group, 256 by default)
+ * - eventStore.segment.groupCommit.lingerMillis (how long to wait for group to fill up, 1 ms by default)
+ * - eventStore.segment.fsync (force every group to disk before appends are completed, true by default)
+ */
+@Log4j2
+public class SegmentStorageEngine implements StorageEngine {
+
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_LINGER_MILLIS = 1;
+
+    static final byte EVENT = 'E';
+    static final byte SNAPSHOT = 'S';
+    static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + 1 + Long.BYTES + Long.BYTES;
+
+    private static final String SUFFIX = ".segment.log";
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path dbBasePath;
+    private final ObjectReader snapshotReader;
+    private final ObjectWriter snapshotWriter;
+    private final long maxSegmentSize;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+    private final boolean fsync;
+
+    private final SegmentIndex index;
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+
+    private int activeSegment;
+    private FileChannel writer;
+    private GroupCommitter<Write> committer;
+
+    public SegmentStorageEngine(Path dbBasePath, ObjectMapper objectMapper, long maxSegmentSize) {
+        this(dbBasePath, objectMapper, maxSegmentSize, DEFAULT_MAX_BATCH_SIZE, DEFAULT_LINGER_MILLIS, true);
+    }
+
+    public SegmentStorageEngine(Path dbBasePath, ObjectMapper objectMapper, long maxSegmentSize,
+                                int maxBatchSize, long lingerMillis, boolean fsync) {
+        this.dbBasePath = dbBasePath;
+        this.snapshotReader = objectMapper.readerFor(Snapshot.class);
+        this.snapshotWriter = objectMapper.writerFor(Snapshot.class);
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+        this.fsync = fsync;
+        this.index = new SegmentIndex(dbBasePath);
+    }
+
+    // step 1: create db directory if missing
+    // step 2: load persistent index (or drop it if corrupt)
+    // step 3: scan segments records written after last indexed one, if any
+    // step 4: open latest segment for appends and start group commit writer
+    @Override
+    public synchronized void open() {
+        Path dbDir = dbBasePath.toAbsolutePath();
+        Try.run(() -> Files.createDirectories(dbDir))
+           .getOrElseThrow(this::reThrow);
+        List<Integer> segments = segments();
+        long end = index.load(segment -> segmentSize((int) segment));
+        int lastSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        for (Integer segment : segments) {
+            if (end >= 0 && segment < segmentOf(end)) continue;
+            long from = end >= 0 && segment == segmentOf(end) ? offsetOf(end) : 0L;
+            scan(segment, from, segment == lastSegment);
+        }
+        activeSegment = lastSegment;
+        writer = Try.of(() -> FileChannel.open(segmentPath(activeSegment), CREATE, WRITE, APPEND))
+                    .getOrElseThrow(this::reThrow);
+        committer = new GroupCommitter<>("segment-writer", maxBatchSize, lingerMillis, this::write);
+        log.debug("opened {} segments with {} aggregates", segments.size(), index.size());
+    }
+
+    @Override
+    public void append(UUID aggregateId, List<byte[]> records) {
+        if (records.isEmpty()) return;
+        commit(new Write(EVENT, aggregateId, records));
+    }
+
+    @Override
+    public Stream<byte[]> read(UUID aggregateId, long fromVersion) {
+        return index.get(aggregateId)
+                    .map(positions -> positions.from(fromVersion))
+                    .map(slice -> IntStream.range(0, slice.positions.length)
+                                           .mapToObj(i -> readPayload(slice.positions[i], slice.lengths[i])))
+                    .orElse(Stream.empty());
+    }
+
+    @Override
+    public long version(UUID aggregateId) {
+        return index.get(aggregateId)
+                    .map(SegmentIndex.AggregatePositions::size)
+                    .orElse(0);
+    }
+
+    @Override
+    public Optional<Snapshot> readSnapshot(UUID aggregateId) {
+        return index.get(aggregateId)
+                    .filter(positions -> positions.getSnapshot() >= 0)
+                    .map(positions -> readPayload(positions.getSnapshot(), positions.getSnapshotLength()))
+                    .flatMap(bytes -> Try.of(() -> snapshotReader.<Snapshot>readValue(bytes))
+                                         .onFailure(e -> log.warn("ignoring snapshot of {}: {}",
+                                                                  aggregateId, e.getLocalizedMessage()))
+                                         .toJavaOptional());
+    }
+
+    // snapshot record is located by index, so it has no offset
+    @Override
+    public void snapshot(long version, Counter aggregate) {
+        UUID aggregateId = aggregate.getAggregateId();
+        byte[] json = Try.of(() -> snapshotWriter.writeValueAsBytes(new Snapshot(version, 0L, aggregate)))
+                         .getOrElseThrow(this::reThrow);
+        commit(new Write(SNAPSHOT, aggregateId, Collections.singletonList(json)));
+    }
+
+    @Override
+    public Collection<UUID> findAll() {
+        return index.aggregateIds();
+    }
+
+    // position right after the last indexed record
+    @Override
+    public long appendMark() {
+        return index.end();
+    }
+
+    @Override
+    public Collection<UUID> findAppendedSince(long mark) {
+        return index.aggregateIdsSince(mark);
+    }
+
+    @Override
+    public synchronized void cleanupAll() {
+        log.debug("clearing all segments...");
+        close();
+        for (Integer segment : segments()) {
+            Try.run(() -> Files.deleteIfExists(segmentPath(segment)))
+               .onFailure(e -> log.error(e.getLocalizedMessage(), e));
+        }
+        index.cleanup();
+        open();
+    }
+
+    @Override
+    public synchronized void close() {
+        Optional.ofNullable(committer).ifPresent(GroupCommitter::close);
+        Optional.ofNullable(writer).ifPresent(channel -> Try.run(channel::close));
+        readers.values().forEach(channel -> Try.run(channel::close));
+        readers.clear();
+        index.close();
+    }
+
+    /* Private API */
+
+    // wait until record is written (and forced to disk if fsync is enabled) by group commit writer
+    private void commit(Write write) {
+        Try.of(() -> committer.submit(write).get())
+           .getOrElseThrow(e -> reThrow(e instanceof ExecutionException ? e.getCause() : e));
+    }
+
+    // group commit writer: frame all records of all writes into single buffer, so they are written by one write call
+    // into the same segment, forced by one force call and then indexed
+    private void write(List<Write> writes) {
+        int size = writes.stream()
+                         .flatMap(write -> write.records.stream())
+                         .mapToInt(record -> HEADER_SIZE + record.length)
+                         .sum();
+        long offset = Try.of(() -> writer.size()).getOrElseThrow(this::reThrow);
+        if (offset > 0 && offset + size > maxSegmentSize) {
+            roll();
+            offset = 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Write write : writes) {
+            for (int i = 0; i < write.records.size(); i++) {
+                byte[] record = write.records.get(i);
+                write.positions[i] = position(activeSegment, offset + buffer.position());
+                write.lengths[i] = HEADER_SIZE + record.length;
+                int start = buffer.position();
+                buffer.putInt(HEADER_SIZE - Integer.BYTES + record.length)
+                      .putInt(0)
+                      .put(write.kind)
+                      .putLong(write.aggregateId.getMostSignificantBits())
+                      .putLong(write.aggregateId.getLeastSignificantBits())
+                      .put(record);
+                int checked = start + Integer.BYTES + Integer.BYTES;
+                buffer.putInt(start + Integer.BYTES, checksum(buffer.array(), checked, buffer.position() - checked));
+            }
+        }
+        buffer.flip();
+        long start = offset;
+        Try.run(() -> {
+            while (buffer.hasRemaining()) writer.write(buffer);
+            if (fsync) writer.force(false);
+        }).onFailure(e -> discard(start))
+          .getOrElseThrow(this::reThrow);
+        for (Write write : writes) {
+            index.add(write.kind, write.aggregateId, write.positions, write.lengths);
+        }
+    }
+
+    // failed group is not indexed and its callers are failed, so whatever part of it was written is cut off: otherwise
+    // recovery would stop at it as at torn record and truncate every record appended after it. if segment cannot be
+    // truncated, next groups are written into new segment (torn records of inactive segments are only skipped)
+    private void discard(long offset) {
+        Try.run(() -> writer.truncate(offset))
+           .onFailure(e -> log.warn("cannot truncate segment {} back to {}: {}",
+                                    activeSegment, offset, e.getLocalizedMessage()))
+           .onFailure(e -> Try.run(this::roll))
+           .onSuccess(ignored -> log.warn("segment {} is truncated back to {}", activeSegment, offset));
+    }
+
+    private void roll() {
+        Try.run(writer::close).getOrElseThrow(this::reThrow);
+        activeSegment++;
+        log.debug("rolling to segment {}", activeSegment);
+        writer = Try.of(() -> FileChannel.open(segmentPath(activeSegment), CREATE_NEW, WRITE, APPEND))
+                    .getOrElseThrow(this::reThrow);
+    }
+
+    // record length is known from index, so whole record (except its length) is read by exactly one positional read
+    private byte[] readPayload(long position, int length) {
+        ByteBuffer record = ByteBuffer.allocate(length - Integer.BYTES);
+        readFully(reader(segmentOf(position)), record, offsetOf(position) + Integer.BYTES);
+        byte[] bytes = record.array();
+        if (record.getInt(0) != checksum(bytes, Integer.BYTES, bytes.length - Integer.BYTES))
+            throw reThrow(new IllegalStateException(String.format("record checksum mismatch at segment %d offset %d",
+                                                                  segmentOf(position), offsetOf(position))));
+        return Arrays.copyOfRange(bytes, HEADER_SIZE - Integer.BYTES, bytes.length);
+    }
+
+    // read records of given segment starting from given offset, verify their checksums and index them, torn record at
+    // the end of active segment (written partially because of crash) is truncated together with everything after it,
+    // so new records will be appended right after last complete one
+    private void scan(int segment, long from, boolean active) {
+        FileChannel channel = reader(segment);
+        long size = Try.of(channel::size).getOrElseThrow(this::reThrow);
+        long offset = from;
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE);
+        while (offset + HEADER_SIZE <= size) {
+            readFully(channel, length.clear(), offset);
+            int recordLength = length.getInt(0);
+            if (recordLength < HEADER_SIZE - Integer.BYTES || offset + Integer.BYTES + recordLength > size) break;
+            if (record.capacity() < recordLength) record = ByteBuffer.allocate(recordLength);
+            readFully(channel, record.clear().limit(recordLength), offset + Integer.BYTES);
+            byte[] bytes = record.array();
+            if (record.getInt(0) != checksum(bytes, Integer.BYTES, recordLength - Integer.BYTES)) break;
+            byte kind = record.get(Integer.BYTES);
+            UUID aggregateId = new UUID(record.getLong(Integer.BYTES + 1),
+                                        record.getLong(Integer.BYTES + 1 + Long.BYTES));
+            index.add(kind, aggregateId, new long[] { position(segment, offset) },
+                      new int[] { Integer.BYTES + recordLength });
+            offset += Integer.BYTES + recordLength;
+        }
+        if (offset > from) log.debug("indexed segment {} records from {} to {}", segment, from, offset);
+        if (offset < size) {
+            log.warn("segment {} has torn record at {} (size: {})", segment, offset, size);
+            if (active) truncate(segment, offset);
+        }
+    }
+
+    private void truncate(int segment, long size) {
+        Try.run(() -> {
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), WRITE)) {
+                channel.truncate(size);
+            }
+        }).getOrElseThrow(this::reThrow);
+    }
+
+    private FileChannel reader(int segment) {
+        return readers.computeIfAbsent(segment, s -> Try.of(() -> FileChannel.open(segmentPath(s), READ))
+                                                        .getOrElseThrow(this::reThrow));
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer buffer, long offset) {
+        Try.run(() -> {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new IOException("unexpected end of segment at " + position);
+                position += read;
+            }
+        }).getOrElseThrow(this::reThrow);
+    }
+
+    private List<Integer> segments() {
+        String[] files = dbBasePath.toAbsolutePath().toFile().list((dir, filename) -> filename.endsWith(SUFFIX));
+        return Optional.ofNullable(files)
+                       .map(Arrays::stream)
+                       .orElse(Stream.empty())
+                       .map(filename -> Integer.valueOf(filename.replace(SUFFIX, "")))
+                       .sorted()
+                       .collect(Collectors.toList());
+    }
+
+    private long segmentSize(int segment) {
+        Path segmentPath = segmentPath(segment);
+        return Files.exists(segmentPath) ? Try.of(() -> Files.size(segmentPath)).getOrElse(-1L) : -1L;
+    }
+
+    private Path segmentPath(int segment) {
+        return dbBasePath.toAbsolutePath().resolve(String.format("%010d%s", segment, SUFFIX));
+    }
+
+    // CRC32C is intrinsified on modern CPUs (SSE 4.2 / ARMv8 crc32 instructions)
+    static int checksum(byte[] bytes, int offset, int length) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(bytes, offset, length);
+        return (int) crc32c.getValue();
+    }
+
+    static long position(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    static int segmentOf(long position) {
+        return (int) (position >>> OFFSET_BITS);
+    }
+
+    static long offsetOf(long position) {
+        return position & OFFSET_MASK;
+    }
+
+    private RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+
+    // records of one append (or snapshot) call, positions and lengths are filled in by group commit writer
+    private static class Write {
+
+        private final byte kind;
+        private final UUID aggregateId;
+        private final List<byte[]> records;
+        private final long[] positions;
+        private final int[] lengths;
+
+        private Write(byte kind, UUID aggregateId, List<byte[]> records) {
+            this.kind = kind;
+            this.aggregateId = aggregateId;
+            this.records = records;
+            this.positions = new long[records.size()];
+            this.lengths = new int[records.size()];
+        }
+    }
+}
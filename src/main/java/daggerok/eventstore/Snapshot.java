@@ -0,0 +1,35 @@
+package daggerok.eventstore;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import daggerok.domain.Counter;
+import lombok.Data;
+
+import java.util.Objects;
+
+/**
+ * Aggregate snapshot:
+ * - version: amount of events folded into aggregate state
+ * - offset: storage engine specific position of events written after snapshot, for example size of
+ * ${aggregateId}.past.json.log file in bytes when snapshot was taken by {@link FileStorageEngine},
+ * so only events written after that position must be replayed on top of the snapshot
+ * - aggregate: snapshot aggregate state
+ */
+@Data
+public class Snapshot {
+
+    private final long version;
+    private final long offset;
+    private final Counter aggregate;
+
+    @JsonCreator
+    public Snapshot(@JsonProperty("version") long version,
+                    @JsonProperty("offset") long offset,
+                    @JsonProperty("aggregate") Counter aggregate) {
+
+        this.version = version;
+        this.offset = offset;
+        // aggregate version is not a part of its JSON state
+        this.aggregate = Objects.requireNonNull(aggregate).restoredAt(version);
+    }
+}
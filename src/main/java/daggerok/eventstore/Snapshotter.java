@@ -0,0 +1,179 @@
+package daggerok.eventstore;
+
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Background snapshots of {@link EventStore} aggregates, so request threads are only appending events.
+ * <p>
+ * Aggregate is snapshotted when everyEvents events were appended since its last snapshot, or when everySeconds
+ * passed since then and it has any new events. Snapshots are taken by bounded pool of worker threads with bounded
+ * queue: at most one snapshot of each aggregate is queued, and if queue is full, snapshot is not taken now (aggregate
+ * keeps its counters, so it will be scheduled again by next append or by next time check).
+ * <p>
+ * Configuration:
+ * - eventStore.snapshot.everyEvents (0 disables events threshold)
+ * - eventStore.snapshot.everySeconds (0 disables time threshold)
+ * - eventStore.snapshot.threads
+ * - eventStore.snapshot.queueSize
+ */
+@Log4j2
+@ApplicationScoped
+public class Snapshotter {
+
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final Map<UUID, Progress> progress = new ConcurrentHashMap<>();
+
+    private long everyEvents;
+    private long everyMillis;
+    private int threads;
+    private int queueSize;
+    private Consumer<UUID> snapshot;
+    private ThreadPoolExecutor workers;
+    private ScheduledExecutorService ticker;
+
+    Snapshotter() {} // proxy...
+
+    @Inject
+    public Snapshotter(Map<String, String> config) {
+        this(Long.parseLong(config.getOrDefault("eventStore.snapshot.everyEvents", "100")),
+             Long.parseLong(config.getOrDefault("eventStore.snapshot.everySeconds", "30")),
+             Integer.parseInt(config.getOrDefault("eventStore.snapshot.threads", "2")),
+             Integer.parseInt(config.getOrDefault("eventStore.snapshot.queueSize", "1024")));
+    }
+
+    public Snapshotter(long everyEvents, long everySeconds, int threads, int queueSize) {
+        this.everyEvents = everyEvents;
+        this.everyMillis = TimeUnit.SECONDS.toMillis(everySeconds);
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    // snapshotter which never takes any snapshot in background
+    public static Snapshotter disabled() {
+        return new Snapshotter(0, 0, 1, 1);
+    }
+
+    public boolean isEnabled() {
+        return everyEvents > 0 || everyMillis > 0;
+    }
+
+    // start worker threads, given function must snapshot current state of aggregate
+    public synchronized void start(Consumer<UUID> snapshot) {
+        if (!isEnabled() || Objects.nonNull(workers)) return;
+        this.snapshot = snapshot;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(queueSize), daemon("snapshotter"));
+        if (everyMillis > 0) {
+            long period = Math.min(everyMillis, 1000L);
+            this.ticker = Executors.newSingleThreadScheduledExecutor(daemon("snapshotter-ticker"));
+            this.ticker.scheduleWithFixedDelay(this::tick, period, period, TimeUnit.MILLISECONDS);
+        }
+        log.info("snapshotting every {} events / {} ms by {} threads", everyEvents, everyMillis, threads);
+    }
+
+    // let running snapshots finish, drop queued ones: on restart aggregates are just replayed from older snapshots
+    public synchronized void stop() {
+        if (Objects.isNull(workers)) return;
+        if (Objects.nonNull(ticker)) ticker.shutdownNow();
+        workers.shutdownNow();
+        Try.run(() -> workers.awaitTermination(10, TimeUnit.SECONDS))
+           .onFailure(e -> log.warn("interrupted while waiting for snapshotter"));
+        workers = null;
+        ticker = null;
+    }
+
+    // called by event store after events were appended
+    public void appended(UUID aggregateId, int events) {
+        if (!isEnabled()) return;
+        Progress aggregate = progress.computeIfAbsent(aggregateId, id -> new Progress());
+        long sinceSnapshot = aggregate.events.addAndGet(events);
+        if (everyEvents > 0 && sinceSnapshot >= everyEvents) schedule(aggregateId, aggregate);
+    }
+
+    // called by event store after aggregate snapshot was taken explicitly
+    public void snapshotted(UUID aggregateId) {
+        Progress aggregate = progress.get(aggregateId);
+        if (Objects.nonNull(aggregate)) aggregate.reset(aggregate.events.get());
+    }
+
+    public long getSnapshots() {
+        return snapshots.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public int getQueued() {
+        return Objects.isNull(workers) ? 0 : workers.getQueue().size();
+    }
+
+    /* Private API */
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        progress.forEach((aggregateId, aggregate) -> {
+            if (aggregate.events.get() > 0 && now - aggregate.since >= everyMillis) schedule(aggregateId, aggregate);
+        });
+    }
+
+    private void schedule(UUID aggregateId, Progress aggregate) {
+        if (!aggregate.scheduled.compareAndSet(false, true)) return;
+        Try.run(() -> workers.execute(() -> run(aggregateId, aggregate)))
+           .onFailure(e -> {
+               aggregate.scheduled.set(false);
+               rejected.increment();
+               log.debug("snapshot of {} is postponed: {}", aggregateId, e.getLocalizedMessage());
+           });
+    }
+
+    // events appended while snapshot was taken may be counted twice, so next snapshot could happen a bit earlier
+    private void run(UUID aggregateId, Progress aggregate) {
+        try {
+            long events = aggregate.events.get();
+            snapshot.accept(aggregateId);
+            aggregate.reset(events);
+            snapshots.increment();
+        } catch (Throwable throwable) {
+            log.warn("snapshot of {} failed: {}", aggregateId, throwable.getLocalizedMessage(), throwable);
+        } finally {
+            aggregate.scheduled.set(false);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // aggregate events appended since its last snapshot
+    private static class Progress {
+
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long since = System.currentTimeMillis();
+
+        private void reset(long snapshottedEvents) {
+            events.addAndGet(-snapshottedEvents);
+            since = System.currentTimeMillis();
+        }
+    }
+}
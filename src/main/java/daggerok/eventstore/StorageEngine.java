@@ -0,0 +1,58 @@
+package daggerok.eventstore;
+
+import daggerok.domain.Counter;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Storage layout of {@link EventStore}, it knows nothing about domain events: each event is an opaque serialized
+ * record, and aggregate version is a number of records stored for aggregate so far.
+ * <p>
+ * Implementations are chosen by eventStore.engine configuration property:
+ * - segment: {@link SegmentStorageEngine} (default) all aggregates are sharing few rolling append only segment files
+ * of length prefixed and checksummed records
+ * - file: {@link FileStorageEngine} 3 files per aggregate of plain JSON lines (records are not checksummed)
+ */
+public interface StorageEngine extends Closeable {
+
+    // create db directory, recover state if needed
+    void open();
+
+    // append records of given aggregate
+    void append(UUID aggregateId, List<byte[]> records);
+
+    // stream aggregate records starting from given version (0 - from beginning of the times)
+    // records up to the version aggregate had at the moment of the call stay readable from returned stream even after
+    // aggregate lock is released (and snapshot is taken meanwhile): stored records are never rewritten in place, so
+    // implementations only have to open (or locate) them right away
+    Stream<byte[]> read(UUID aggregateId, long fromVersion);
+
+    // amount of records stored for given aggregate
+    long version(UUID aggregateId);
+
+    // latest snapshot of given aggregate if any
+    Optional<Snapshot> readSnapshot(UUID aggregateId);
+
+    // store snapshot of aggregate state at given version, all aggregate events up to that version must be already
+    // appended (snapshot offset is assigned by storage engine)
+    void snapshot(long version, Counter aggregate);
+
+    // all stored aggregates, it's called only once on open: event store keeps its own catalog afterwards
+    Collection<UUID> findAll();
+
+    // opaque mark of everything appended so far, taken while no aggregate is being appended
+    long appendMark();
+
+    // aggregates appended after given append mark (maybe a few more), it's used to recover $all stream after crash
+    Collection<UUID> findAppendedSince(long mark);
+
+    void cleanupAll();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,73 @@
+package daggerok.eventstore;
+
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Fixed set of read-write locks, each aggregate is mapped onto one of them by its id hash. Writes (append, snapshot)
+ * of the same aggregate are exclusive and never overlap with its reads, while unrelated aggregates are most likely
+ * mapped onto different stripes, so they are proceeding in parallel. Memory is bounded by amount of stripes, no matter
+ * how many aggregates we have.
+ */
+class StripedLocks {
+
+    private final ReadWriteLock[] stripes;
+    private final int mask;
+
+    // amount of stripes is rounded up to the power of two
+    StripedLocks(int concurrencyLevel) {
+        int size = Integer.highestOneBit(Math.max(1, concurrencyLevel - 1)) << 1;
+        this.stripes = new ReadWriteLock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    <T> T read(UUID aggregateId, Supplier<T> action) {
+        return locked(stripeOf(aggregateId).readLock(), action);
+    }
+
+    <T> T write(UUID aggregateId, Supplier<T> action) {
+        return locked(stripeOf(aggregateId).writeLock(), action);
+    }
+
+    void write(UUID aggregateId, Runnable action) {
+        write(aggregateId, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    // take every stripe (always in the same order, so it cannot deadlock with another writeAll)
+    void writeAll(Runnable action) {
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) stripes[locked].writeLock().lock();
+            action.run();
+        } finally {
+            while (locked > 0) stripes[--locked].writeLock().unlock();
+        }
+    }
+
+    int size() {
+        return stripes.length;
+    }
+
+    /* Private API */
+
+    private ReadWriteLock stripeOf(UUID aggregateId) {
+        int hash = aggregateId.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static <T> T locked(Lock lock, Supplier<T> action) {
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
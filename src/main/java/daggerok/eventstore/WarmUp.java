@@ -0,0 +1,131 @@
+package daggerok.eventstore;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cold start warm-up of {@link EventStore}: right after CDI container is initialized, stored aggregates are replayed
+ * in background by parallel ForkJoinPool workers, so their versions are known and hot aggregates are sitting in
+ * aggregate cache before first requests are coming. Until warm-up is done, /health reports STARTING status.
+ * <p>
+ * Only as many aggregates as aggregate cache can hold are replayed, most recently appended first: warming up more of
+ * them would only evict the ones just warmed.
+ * <p>
+ * Configuration:
+ * - eventStore.warmup.enabled
+ * - eventStore.warmup.parallelism (0 - amount of available processors)
+ * - eventStore.cache.maxSize (see {@link AggregateCache})
+ */
+@Log4j2
+@ApplicationScoped
+public class WarmUp {
+
+    private final AtomicInteger warmed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private boolean enabled;
+    private int parallelism;
+    private int maxAggregates;
+    private EventStore eventStore;
+
+    private volatile int total;
+    private volatile long millis;
+    private volatile boolean done;
+    private CompletableFuture<Void> warmUp;
+
+    WarmUp() {} // proxy...
+
+    @Inject
+    public WarmUp(Map<String, String> config, EventStore eventStore, AggregateCache aggregateCache) {
+        this(Boolean.parseBoolean(config.getOrDefault("eventStore.warmup.enabled", "true")),
+             Integer.parseInt(config.getOrDefault("eventStore.warmup.parallelism", "0")),
+             aggregateCache.getMaxSize(), eventStore);
+    }
+
+    // maxAggregates: capacity of aggregate cache
+    public WarmUp(boolean enabled, int parallelism, int maxAggregates, EventStore eventStore) {
+        this.enabled = enabled;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.maxAggregates = Math.max(0, maxAggregates);
+        this.eventStore = eventStore;
+    }
+
+    // ContainerInitialized event of Weld is not fired when container is bootstrapped by Jersey, while standard
+    // application context initialized event always is
+    private void on(@Observes @Initialized(ApplicationScoped.class) Object event) {
+        start();
+    }
+
+    // warm-up is running in background, returned future is completed when it's done
+    public synchronized CompletableFuture<Void> start() {
+        if (Objects.nonNull(warmUp)) return warmUp;
+        if (!enabled) {
+            done = true;
+            warmUp = CompletableFuture.completedFuture(null);
+            return warmUp;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        warmUp = CompletableFuture.runAsync(this::run, pool)
+                                  .whenComplete((ignored, e) -> {
+                                      if (Objects.nonNull(e)) log.error("warm-up failed", e);
+                                      done = true;
+                                      pool.shutdown();
+                                  });
+        return warmUp;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getWarmed() {
+        return warmed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    /* Private API */
+
+    // parallel stream started from ForkJoinPool worker is executed by that pool
+    private void run() {
+        long startedAt = System.currentTimeMillis();
+        Collection<UUID> aggregateIds = eventStore.findRecent(maxAggregates);
+        total = aggregateIds.size();
+        log.info("warming up {} aggregates by {} workers...", total, parallelism);
+        aggregateIds.parallelStream().forEach(this::warmUp);
+        millis = System.currentTimeMillis() - startedAt;
+        log.info("warmed up {} aggregates ({} failed) in {} ms", warmed.get(), failed.get(), millis);
+    }
+
+    private void warmUp(UUID aggregateId) {
+        try {
+            eventStore.loadAggregate(aggregateId);
+            int progress = warmed.incrementAndGet();
+            if (progress % Math.max(1, total / 10) == 0) log.info("warmed up {} of {} aggregates", progress, total);
+        } catch (Throwable throwable) {
+            failed.incrementAndGet();
+            log.warn("cannot warm up {}: {}", aggregateId, throwable.getLocalizedMessage());
+        }
+    }
+}
@@ -30,9 +30,10 @@ public class CounterCreated implements DomainEvent {
                           @JsonProperty("counterName") String counterName,
                           @JsonProperty("at") ZonedDateTime at) {
 
-        this.aggregateId = Optional.of(aggregateId).orElse(UUID.randomUUID());
-        this.counterName = Optional.ofNullable(counterName).orElse(String.format("counter-%d", System.nanoTime()));
-        this.at = Optional.ofNullable(at).orElse(ZonedDateTime.now());
+        this.aggregateId = Optional.ofNullable(aggregateId).orElseGet(UUID::randomUUID);
+        this.counterName = Optional.ofNullable(counterName)
+                                   .orElseGet(() -> String.format("counter-%d", System.nanoTime()));
+        this.at = Optional.ofNullable(at).orElseGet(ZonedDateTime::now);
     }
 
     public CounterCreated(UUID aggregateId, String counterName) {
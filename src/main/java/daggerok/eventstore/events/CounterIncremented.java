@@ -38,7 +38,7 @@ public class CounterIncremented implements DomainEvent {
         this.aggregateId = Objects.requireNonNull(aggregateId);
         this.by = Optional.ofNullable(by).orElse("anonymous");
         this.withValue = Optional.ofNullable(withValue).orElse(1L);
-        this.at = Optional.ofNullable(at).orElse(ZonedDateTime.now());
+        this.at = Optional.ofNullable(at).orElseGet(ZonedDateTime::now);
     }
 
     public CounterIncremented(UUID aggregateId) {
@@ -38,7 +38,7 @@ public class CounterSuspended implements DomainEvent {
         this.aggregateId = Objects.requireNonNull(aggregateId);
         this.by = Optional.ofNullable(by).orElse("anonymous");
         this.reason = Optional.ofNullable(reason).orElse("no reason");
-        this.at = Optional.ofNullable(at).orElse(ZonedDateTime.now());
+        this.at = Optional.ofNullable(at).orElseGet(ZonedDateTime::now);
     }
 
     public CounterSuspended(UUID aggregateId) {
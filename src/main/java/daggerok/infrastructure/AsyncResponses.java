@@ -0,0 +1,26 @@
+package daggerok.infrastructure;
+
+import javax.ws.rs.container.AsyncResponse;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+// resumes suspended request when given stage is completed: by its result (Response or entity), or by its failure
+// cause, so it's mapped by ErrorMapper exactly as if it was thrown by resource method itself
+public final class AsyncResponses {
+
+    private AsyncResponses() {}
+
+    public static void resume(AsyncResponse asyncResponse, CompletionStage<?> stage) {
+        stage.whenComplete((result, throwable) -> {
+            if (Objects.isNull(throwable)) asyncResponse.resume(result);
+            else asyncResponse.resume(unwrap(throwable));
+        });
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && Objects.nonNull(throwable.getCause())
+                ? throwable.getCause()
+                : throwable;
+    }
+}
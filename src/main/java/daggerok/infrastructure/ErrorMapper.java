@@ -1,13 +1,16 @@
 package daggerok.infrastructure;
 
+import daggerok.eventstore.ConcurrencyException;
 import lombok.extern.log4j.Log4j2;
 
 import javax.enterprise.context.RequestScoped;
 import javax.json.Json;
+import javax.ws.rs.ServiceUnavailableException;
 import javax.ws.rs.core.*;
 import javax.ws.rs.ext.ExceptionMapper;
 import javax.ws.rs.ext.Provider;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 @Log4j2
 @Provider
@@ -24,7 +27,13 @@ public class ErrorMapper implements ExceptionMapper<Exception> {
     public Response toResponse(Exception exception) {
         log.warn("{} {}", request.getMethod(), exception.getLocalizedMessage(), exception);
 
-        return Response.status(Response.Status.BAD_REQUEST)
+        Response.Status status = exception instanceof ConcurrencyException
+                ? Response.Status.CONFLICT
+                : exception instanceof RejectedExecutionException || exception instanceof ServiceUnavailableException
+                ? Response.Status.SERVICE_UNAVAILABLE
+                : Response.Status.BAD_REQUEST;
+
+        return Response.status(status)
                        .entity(Json.createObjectBuilder()
                                    .add("error", Optional.ofNullable(exception.getLocalizedMessage())
                                                          .orElse("empty"))
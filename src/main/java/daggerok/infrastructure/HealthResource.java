@@ -1,12 +1,19 @@
 package daggerok.infrastructure;
 
+import daggerok.eventstore.AggregateCache;
+import daggerok.eventstore.EventBroadcaster;
+import daggerok.eventstore.IoExecutor;
+import daggerok.eventstore.Snapshotter;
+import daggerok.eventstore.WarmUp;
 import lombok.extern.log4j.Log4j2;
 import org.jboss.weld.environment.se.events.ContainerInitialized;
 
 import javax.enterprise.context.RequestScoped;
 import javax.enterprise.event.Observes;
+import javax.inject.Inject;
 import javax.json.Json;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.ws.rs.*;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
@@ -19,6 +26,21 @@ import static javax.ws.rs.core.MediaType.WILDCARD;
 @Produces(APPLICATION_JSON)
 public class HealthResource {
 
+    @Inject
+    AggregateCache aggregateCache;
+
+    @Inject
+    Snapshotter snapshotter;
+
+    @Inject
+    WarmUp warmUp;
+
+    @Inject
+    EventBroadcaster eventBroadcaster;
+
+    @Inject
+    IoExecutor ioExecutor;
+
     private void on(@Observes ContainerInitialized containerInitializedEvent) {
         log.info(containerInitializedEvent);
     }
@@ -28,7 +50,45 @@ public class HealthResource {
     public JsonObject health() {
         log.info("health");
         return Json.createObjectBuilder()
-                   .add("status", "UP")
+                   .add("status", warmUp.isDone() ? "UP" : "STARTING")
+                   .add("warmup", Json.createObjectBuilder()
+                                      .add("aggregates", warmUp.getTotal())
+                                      .add("warmed", warmUp.getWarmed())
+                                      .add("failed", warmUp.getFailed())
+                                      .add("millis", warmUp.getMillis())
+                                      .build())
+                   .add("cache", Json.createObjectBuilder()
+                                     .add("size", aggregateCache.size())
+                                     .add("hits", aggregateCache.getHits())
+                                     .add("misses", aggregateCache.getMisses())
+                                     .add("evictions", aggregateCache.getEvictions())
+                                     .build())
+                   .add("snapshots", Json.createObjectBuilder()
+                                         .add("taken", snapshotter.getSnapshots())
+                                         .add("postponed", snapshotter.getRejected())
+                                         .add("queued", snapshotter.getQueued())
+                                         .build())
+                   .add("io", Json.createObjectBuilder()
+                                  .add("virtualThreads", ioExecutor.isVirtualThreads())
+                                  .add("pending", ioExecutor.getPending())
+                                  .build())
+                   .add("sse", Json.createObjectBuilder()
+                                   .add("subscribers", eventBroadcaster.getSubscribers())
+                                   .add("dropped", eventBroadcaster.getDropped())
+                                   .add("disconnected", eventBroadcaster.getDisconnected())
+                                   .build())
+                   .build();
+    }
+
+    // startup phases in milliseconds (see StartupPhases)
+    @GET
+    @Path("startup")
+    public JsonObject startup() {
+        log.info("startup");
+        JsonObjectBuilder phases = Json.createObjectBuilder();
+        StartupPhases.getMillis().forEach(phases::add);
+        return Json.createObjectBuilder()
+                   .add("phases", phases.build())
                    .build();
     }
 
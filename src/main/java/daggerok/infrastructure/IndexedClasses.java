@@ -0,0 +1,74 @@
+package daggerok.infrastructure;
+
+import io.vavr.control.Try;
+import lombok.Cleanup;
+import lombok.extern.log4j.Log4j2;
+import org.jboss.jandex.AnnotationInstance;
+import org.jboss.jandex.AnnotationTarget;
+import org.jboss.jandex.DotName;
+import org.jboss.jandex.Index;
+import org.jboss.jandex.IndexReader;
+
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Classes annotated by given annotations, looked up in build-time Jandex index (META-INF/jandex.idx written by
+ * jandex-maven-plugin at process-classes phase) instead of scanning classpath: Jersey resources and providers are
+ * registered explicitly by them.
+ */
+@Log4j2
+public final class IndexedClasses {
+
+    private static final String INDEX = "META-INF/jandex.idx";
+
+    private IndexedClasses() {}
+
+    // classes of given package (and its sub-packages) annotated by any of given annotations, empty if there is no
+    // index of that package on classpath (for example classes were compiled by IDE, not by maven)
+    @SafeVarargs
+    public static Optional<Set<Class<?>>> annotatedBy(String packageName, Class<? extends Annotation>... annotations) {
+        ClassLoader classLoader = IndexedClasses.class.getClassLoader();
+        List<URL> urls = Try.of(() -> (List<URL>) Collections.list(classLoader.getResources(INDEX)))
+                            .getOrElse(Collections.emptyList());
+        Set<Class<?>> classes = new LinkedHashSet<>();
+        boolean indexed = false;
+        for (URL url : urls) {
+            Index index = Try.of(() -> read(url))
+                             .onFailure(e -> log.warn("cannot read {}: {}", url, e.toString()))
+                             .getOrNull();
+            if (Objects.isNull(index)) continue;
+            for (Class<? extends Annotation> annotation : annotations) {
+                for (AnnotationInstance instance : index.getAnnotations(name(annotation))) {
+                    if (instance.target().kind() != AnnotationTarget.Kind.CLASS) continue;
+                    String className = instance.target().asClass().name().toString();
+                    if (!className.startsWith(packageName + ".")) continue;
+                    classes.add(Try.of(() -> Class.forName(className, false, classLoader))
+                                   .getOrElseThrow(IndexedClasses::reThrow));
+                }
+            }
+            indexed = indexed || index.getKnownClasses()
+                                      .stream()
+                                      .anyMatch(info -> info.name().toString().startsWith(packageName + "."));
+        }
+        return indexed ? Optional.of(classes) : Optional.empty();
+    }
+
+    /* Private API */
+
+    private static Index read(URL url) throws Exception {
+        @Cleanup InputStream inputStream = url.openStream();
+        return new IndexReader(inputStream).read();
+    }
+
+    private static DotName name(Class<? extends Annotation> annotation) {
+        return DotName.createSimple(annotation.getName());
+    }
+
+    private static RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+}
@@ -0,0 +1,208 @@
+package daggerok.infrastructure;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.spi.Container;
+
+import javax.ws.rs.core.MediaType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Jersey on Netty server bootstrap driven by configuration, instead of hardcoded one of NettyHttpContainerProvider
+ * (single NIO boss thread, default NIO workers, any interface, h2c or HTTP/1.1 chosen in code):
+ * - server.host and server.port (base URI is http://host:port/)
+ * - server.protocol: h2c (HTTP/1.1 with HTTP/2 cleartext upgrade) or http1 (HTTP/1.1 keep-alive only)
+ * - server.bossThreads and server.workerThreads (0 - netty default: twice amount of processors)
+ * - server.backlog (accept queue size)
+ * - server.nativeTransport: epoll event loops if it's available (Linux, netty-all is bundling its native library),
+ * NIO otherwise
+ * - server.pooledAllocator: pooled direct ByteBufs (unpooled heap ones otherwise)
+ * - server.maxContentLength: request body limit in bytes (0 - unlimited), larger HTTP/1.1 request is answered with
+ * 413 and its connection is closed, HTTP/2 streams after h2c upgrade are not limited
+ * <p>
+ * Jersey channel initializer and container are package-private, so they are created reflectively, exactly as
+ * NettyHttpContainerProvider is creating them.
+ */
+@Log4j2
+public class NettyServer {
+
+    private static final String JERSEY_PACKAGE = "org.glassfish.jersey.netty.httpserver.";
+
+    private final URI baseUri;
+    private final boolean http2;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final int backlog;
+    private final boolean nativeTransport;
+    private final boolean pooledAllocator;
+    private final long maxContentLength;
+
+    public NettyServer(Map<String, String> config) {
+        String host = config.getOrDefault("server.host", "127.0.0.1");
+        int port = Integer.parseInt(config.getOrDefault("server.port", "8080"));
+        String protocol = config.getOrDefault("server.protocol", "h2c").trim().toLowerCase();
+        if (!"h2c".equals(protocol) && !"http1".equals(protocol))
+            throw new IllegalStateException(String.format("unknown server.protocol: %s", protocol));
+        this.baseUri = URI.create(String.format("http://%s:%d/", host, port));
+        this.http2 = "h2c".equals(protocol);
+        this.bossThreads = Math.max(1, Integer.parseInt(config.getOrDefault("server.bossThreads", "1")));
+        this.workerThreads = Math.max(0, Integer.parseInt(config.getOrDefault("server.workerThreads", "0")));
+        this.backlog = Integer.parseInt(config.getOrDefault("server.backlog", "1024"));
+        this.nativeTransport = Boolean.parseBoolean(config.getOrDefault("server.nativeTransport", "true"));
+        this.pooledAllocator = Boolean.parseBoolean(config.getOrDefault("server.pooledAllocator", "true"));
+        this.maxContentLength = Long.parseLong(config.getOrDefault("server.maxContentLength", "1048576"));
+    }
+
+    public URI getBaseUri() {
+        return baseUri;
+    }
+
+    // binds server channel, closing it shuts down Jersey application and event loops
+    public Channel start(ResourceConfig configuration) {
+        boolean epoll = nativeTransport && Epoll.isAvailable();
+        if (nativeTransport && !epoll) log.debug("epoll is not available: {}", Epoll.unavailabilityCause().toString());
+        EventLoopGroup bossGroup = epoll ? new EpollEventLoopGroup(bossThreads) : new NioEventLoopGroup(bossThreads);
+        EventLoopGroup workerGroup = epoll
+                ? new EpollEventLoopGroup(workerThreads)
+                : new NioEventLoopGroup(workerThreads);
+        Class<? extends ServerChannel> channelClass = epoll
+                ? EpollServerSocketChannel.class
+                : NioServerSocketChannel.class;
+        ByteBufAllocator allocator = pooledAllocator
+                ? new PooledByteBufAllocator(true)
+                : new UnpooledByteBufAllocator(false);
+
+        // Jersey application (and CDI container with it) is initialized by container constructor
+        Container container = StartupPhases.measure("jersey", () -> newInstance(
+                JERSEY_PACKAGE + "NettyHttpContainer",
+                new Class<?>[] { javax.ws.rs.core.Application.class }, configuration));
+        ChannelInitializer<SocketChannel> jerseyInitializer = newInstance(
+                JERSEY_PACKAGE + "JerseyServerInitializer",
+                new Class<?>[] { URI.class, SslContext.class, container.getClass(), boolean.class },
+                baseUri, null, container, http2);
+        Method initChannel = Try.of(() -> jerseyInitializer.getClass().getMethod("initChannel", SocketChannel.class))
+                                .andThen(method -> method.setAccessible(true))
+                                .getOrElseThrow(NettyServer::reThrow);
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(channelClass)
+                .option(ChannelOption.SO_BACKLOG, backlog)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) throws Exception {
+                        initChannel.invoke(jerseyInitializer, channel);
+                        if (maxContentLength <= 0) return;
+                        ChannelHandlerContext codec = channel.pipeline().context(HttpServerCodec.class);
+                        channel.pipeline().addAfter(codec.name(), "request-size-limit",
+                                                    new RequestSizeLimit(maxContentLength));
+                    }
+                });
+
+        StartupPhases.begin("nettyBind");
+        Channel server = Try.of(() -> bootstrap.bind(new InetSocketAddress(baseUri.getHost(), baseUri.getPort()))
+                                               .sync()
+                                               .channel())
+                            .andFinally(() -> StartupPhases.end("nettyBind"))
+                            .onFailure(e -> {
+                                bossGroup.shutdownGracefully();
+                                workerGroup.shutdownGracefully();
+                            })
+                            .getOrElseThrow(NettyServer::reThrow);
+        server.closeFuture().addListener(future -> {
+            // on JVM shutdown, Weld shutdown hook may have already stopped CDI container
+            Try.run(() -> container.getApplicationHandler().onShutdown(container))
+               .onFailure(e -> log.debug("jersey application shutdown: {}", e.toString()));
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        });
+        log.info("listening on {} ({}, {} transport, {} boss / {} worker threads, {} allocator, max content {})",
+                 baseUri, http2 ? "h2c" : "http/1.1", epoll ? "epoll" : "nio", bossThreads,
+                 workerThreads > 0 ? workerThreads : "default", pooledAllocator ? "pooled direct" : "unpooled heap",
+                 maxContentLength > 0 ? maxContentLength + " bytes" : "unlimited");
+        return server;
+    }
+
+    /* Private API */
+
+    @SuppressWarnings("unchecked")
+    private static <T> T newInstance(String className, Class<?>[] parameterTypes, Object... args) {
+        return Try.of(() -> {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return (T) constructor.newInstance(args);
+        }).getOrElseThrow(NettyServer::reThrow);
+    }
+
+    private static RuntimeException reThrow(Throwable throwable) {
+        log.warn(throwable.getLocalizedMessage(), throwable);
+        return new RuntimeException(throwable.getClass() + ": " + throwable.getLocalizedMessage());
+    }
+
+    // answers HTTP/1.1 request which body is larger than limit (by Content-Length right away, or while chunks are
+    // received) with 413 and closes connection, so Jersey never buffers it
+    private static class RequestSizeLimit extends ChannelInboundHandlerAdapter {
+
+        private final long maxContentLength;
+
+        private long received;
+        private boolean rejected;
+
+        private RequestSizeLimit(long maxContentLength) {
+            this.maxContentLength = maxContentLength;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpRequest) {
+                received = 0;
+                rejected = HttpUtil.getContentLength((HttpRequest) msg, -1L) > maxContentLength;
+                if (rejected) reject(ctx);
+            }
+            if (!rejected && msg instanceof HttpContent) {
+                received += ((HttpContent) msg).content().readableBytes();
+                rejected = received > maxContentLength;
+                if (rejected) reject(ctx);
+            }
+            if (rejected) ReferenceCountUtil.release(msg);
+            else ctx.fireChannelRead(msg);
+        }
+
+        private void reject(ChannelHandlerContext ctx) {
+            byte[] error = String.format("{\"error\":\"request body exceeds %d bytes\"}", maxContentLength)
+                                 .getBytes(StandardCharsets.UTF_8);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                                                                    HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+                                                                    Unpooled.wrappedBuffer(error));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, error.length);
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
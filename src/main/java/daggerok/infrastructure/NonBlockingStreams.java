@@ -0,0 +1,150 @@
+package daggerok.infrastructure;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.vavr.control.Try;
+import lombok.extern.log4j.Log4j2;
+import org.glassfish.jersey.netty.connector.internal.JerseyChunkedInput;
+
+import javax.ws.rs.core.MediaType;
+import java.lang.reflect.Field;
+import java.util.Objects;
+import java.util.Queue;
+
+/**
+ * Jersey Netty container streams every response body through {@link JerseyChunkedInput}, which is read by netty
+ * {@link ChunkedWriteHandler} on channel event loop. When nothing was written yet, its readChunk blocks event loop for
+ * up to 10 seconds and returns an empty chunk, so {@link ChunkedWriteHandler} keeps calling it again: each open
+ * Server-Sent Events stream pins its event loop, and all other connections served by that event loop are stuck.
+ * <p>
+ * This class is wrapping inputs of text/event-stream responses into non blocking ones: readChunk returns nothing if
+ * Jersey hasn't queued any data yet, and transfer is resumed by channel flush Jersey sink is doing after every event
+ * (and on close). Other responses are short living, they are left as is: they may write more than 8 chunks (Jersey
+ * queue capacity) before first flush, so they rely on blocking reads.
+ * <p>
+ * Usage: NonBlockingStreams.install(serverChannel) right after server was bound.
+ */
+@Log4j2
+public class NonBlockingStreams {
+
+    private static final Field HTTP_INPUT = field(HttpChunkedInput.class, "input");
+    private static final Field JERSEY_QUEUE = field(JerseyChunkedInput.class, "queue");
+
+    private NonBlockingStreams() { }
+
+    // intercept accepted connections of server channel (in front of netty acceptor) to patch their pipelines
+    public static void install(Channel server) {
+        if (HTTP_INPUT == null || JERSEY_QUEUE == null) {
+            log.warn("jersey netty container internals are not recognized, responses are streamed as is");
+            return;
+        }
+        server.pipeline().addFirst(new Acceptor());
+    }
+
+    private static Field field(Class<?> type, String name) {
+        return Try.of(() -> type.getDeclaredField(name))
+                  .andThen(field -> field.setAccessible(true))
+                  .onFailure(e -> log.debug("{}.{} is not accessible: {}", type.getSimpleName(), name, e.toString()))
+                  .getOrNull();
+    }
+
+    @ChannelHandler.Sharable
+    private static class Acceptor extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof Channel) ((Channel) msg).pipeline().addFirst(new Installer());
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    // ChunkedWriteHandler is added by Jersey only when first HTTP/1.1 request was read (no h2c upgrade), so
+    // wait for it and put Wrapper right after it: Jersey handler writes are going through Wrapper first
+    private static class Installer extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.fireChannelRead(msg);
+            ChannelPipeline pipeline = ctx.pipeline();
+            ChannelHandlerContext chunkedWriter = pipeline.context(ChunkedWriteHandler.class);
+            if (chunkedWriter == null) return;
+            pipeline.addAfter(chunkedWriter.name(), "non-blocking-streams", new Wrapper());
+            pipeline.remove(this);
+        }
+    }
+
+    // Jersey writes response headers and then its body input, only one response is written at a time
+    private static class Wrapper extends ChannelOutboundHandlerAdapter {
+
+        private boolean eventStream;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof HttpResponse) eventStream = isEventStream((HttpResponse) msg);
+            ctx.write(eventStream && msg instanceof HttpChunkedInput ? wrap((HttpChunkedInput) msg) : msg, promise);
+        }
+
+        private static boolean isEventStream(HttpResponse response) {
+            String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+            return Objects.nonNull(contentType) && contentType.startsWith(MediaType.SERVER_SENT_EVENTS);
+        }
+
+        private static Object wrap(HttpChunkedInput httpInput) {
+            return Try.of(() -> HTTP_INPUT.get(httpInput))
+                      .filter(JerseyChunkedInput.class::isInstance)
+                      .map(JerseyChunkedInput.class::cast)
+                      .mapTry(input -> new NonBlockingInput(input, (Queue<?>) JERSEY_QUEUE.get(input)))
+                      .<Object>map(HttpChunkedInput::new)
+                      .getOrElse(httpInput);
+        }
+    }
+
+    private static class NonBlockingInput implements ChunkedInput<ByteBuf> {
+
+        private final JerseyChunkedInput input;
+        private final Queue<?> queue;
+
+        private NonBlockingInput(JerseyChunkedInput input, Queue<?> queue) {
+            this.input = input;
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return input.isEndOfInput();
+        }
+
+        @Override
+        public void close() throws Exception {
+            input.close();
+        }
+
+        @Override
+        @Deprecated
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        // null tells ChunkedWriteHandler to stop until next flush
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+            return queue.isEmpty() ? null : input.readChunk(allocator);
+        }
+
+        @Override
+        public long length() {
+            return input.length();
+        }
+
+        @Override
+        public long progress() {
+            return input.progress();
+        }
+    }
+}
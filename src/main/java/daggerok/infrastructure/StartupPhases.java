@@ -0,0 +1,103 @@
+package daggerok.infrastructure;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.AfterDeploymentValidation;
+import javax.enterprise.inject.spi.Extension;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Startup time broken into phases, so it's clear where cold start is spent:
+ * - jvm: from JVM process start until Main.main is called (includes Main class loading and logging initialization)
+ * - jersey: Jersey application initialization (includes cdi and storeRecovery, both are done while Jersey is
+ * bootstrapping its CDI injection manager)
+ * - cdi: Weld container boot, from bean archives discovery until deployment is validated
+ * - storeRecovery: EventStore opening storage engine, loading aggregate catalog and recovering $all stream
+ * - nettyBind: binding server channel
+ * - startup: whole Main.main
+ * <p>
+ * Phases are recorded statically (server and Jersey are started before CDI container exists), every phase is logged
+ * when it's done, and exposed by GET /startup.
+ */
+@Log4j2
+public final class StartupPhases {
+
+    private static final Map<String, Phase> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private StartupPhases() {}
+
+    public static void begin(String phase) {
+        phases.put(phase, new Phase(System.nanoTime()));
+    }
+
+    public static void end(String phase) {
+        Phase started = phases.get(phase);
+        if (Objects.isNull(started) || started.endedAt != 0) return;
+        started.endedAt = System.nanoTime();
+        log.info("{} took {} ms", phase, started.millis());
+    }
+
+    public static <T> T measure(String phase, Supplier<T> supplier) {
+        begin(phase);
+        try {
+            return supplier.get();
+        } finally {
+            end(phase);
+        }
+    }
+
+    // time from JVM process start until now (or 0, if process start time is not known)
+    public static void recordJvm() {
+        ProcessHandle.current().info().startInstant().ifPresent(startedAt -> {
+            Phase jvm = new Phase(0);
+            jvm.endedAt = Duration.between(startedAt, Instant.now()).toNanos();
+            phases.put("jvm", jvm);
+            log.info("jvm took {} ms", jvm.millis());
+        });
+    }
+
+    // finished phases in milliseconds, by order they were started
+    public static Map<String, Long> getMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        synchronized (phases) {
+            phases.forEach((phase, timing) -> {
+                if (timing.endedAt != 0) millis.put(phase, timing.millis());
+            });
+        }
+        return Collections.unmodifiableMap(millis);
+    }
+
+    private static class Phase {
+
+        private final long startedAt;
+        private volatile long endedAt;
+
+        private Phase(long startedAt) {
+            this.startedAt = startedAt;
+        }
+
+        private long millis() {
+            return (endedAt - startedAt) / 1_000_000;
+        }
+    }
+
+    // registered in META-INF/services/javax.enterprise.inject.spi.Extension, Weld is loading extensions before bean
+    // archives are discovered, so cdi phase includes discovery
+    public static class CdiBoot implements Extension {
+
+        public CdiBoot() {
+            StartupPhases.begin("cdi");
+        }
+
+        private void end(@Observes AfterDeploymentValidation event) {
+            StartupPhases.end("cdi");
+        }
+    }
+}
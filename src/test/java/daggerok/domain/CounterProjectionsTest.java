@@ -0,0 +1,166 @@
+package daggerok.domain;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import daggerok.eventstore.EventStore;
+import daggerok.eventstore.events.CounterCreated;
+import daggerok.eventstore.events.CounterIncremented;
+import daggerok.eventstore.events.CounterSuspended;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.fail;
+
+class CounterProjectionsTest {
+
+    private Path dbPath = Paths.get("target", "test-db-" + System.currentTimeMillis());
+
+    private ObjectMapper objectMapper = JsonMapper.builder()
+                                                  .addModules(new JavaTimeModule())
+                                                  .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+                                                  .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                                                  .disable(SerializationFeature.WRITE_DURATIONS_AS_TIMESTAMPS)
+                                                  .disable(SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                                                  .disable(DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                                                  .build();
+
+    private EventStore eventStore = new EventStore(dbPath, objectMapper);
+
+    @BeforeEach
+    void setUp() {
+        eventStore.postConstruct();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        eventStore.preDestroy();
+        if (Files.notExists(dbPath)) return;
+        try (Stream<Path> paths = Files.walk(dbPath)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void should_project_counters_incrementally() throws Exception {
+        // given
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        eventStore.append(new CounterCreated(first, "first"));
+        eventStore.append(new CounterCreated(second, "second"));
+        eventStore.append(new CounterIncremented(first, "max", 3L, null));
+        CounterProjections projections = new CounterProjections(true, eventStore);
+
+        // when
+        projections.start();
+        eventStore.append(new CounterCreated(third, "third"));
+        eventStore.append(new CounterIncremented(second, "bob", 5L, null));
+        eventStore.append(new CounterIncremented(third, "max", 1L, null));
+        eventStore.append(new CounterIncremented(first, "max", 1L, null));
+        eventStore.append(new CounterSuspended(second, "bob", "done", null));
+        eventStore.append(new CounterSuspended(second, "bob", "again", null));
+
+        // then
+        await(() -> projections.getPosition() == 9L);
+        assertThat(projections.top(2)).extracting(CounterProjections.CounterSummary::getAggregateId)
+                                      .containsExactly(second, first);
+        assertThat(projections.top(10)).extracting(CounterProjections.CounterSummary::getCounter)
+                                       .containsExactly(5L, 4L, 1L);
+        assertThat(projections.find(second)).hasValueSatisfying(summary -> {
+            assertThat(summary.getName()).isEqualTo("second");
+            assertThat(summary.isSuspended()).isTrue();
+        });
+        assertThat(projections.getCounters()).isEqualTo(3L);
+        assertThat(projections.getSuspended()).isEqualTo(1L);
+        assertThat(projections.getActive()).isEqualTo(2L);
+        assertThat(projections.getTotalsBy()).containsExactly(entry("bob", 5L), entry("max", 5L));
+        assertThat(projections.isLive()).isTrue();
+
+        // and when
+        eventStore.cleanupAll();
+        eventStore.append(new CounterCreated(third, "recreated"));
+        eventStore.append(new CounterIncremented(third, "bob", 2L, null));
+
+        // then
+        await(() -> projections.getPosition() == 2L && projections.getCounters() == 1L);
+        assertThat(projections.top(10)).extracting(CounterProjections.CounterSummary::getName)
+                                        .containsExactly("recreated");
+        assertThat(projections.find(first)).isEmpty();
+        assertThat(projections.getSuspended()).isZero();
+        assertThat(projections.getTotalsBy()).containsExactly(entry("bob", 2L));
+        projections.stop();
+    }
+
+    @Test
+    void should_page_and_filter_aggregate_catalog() throws Exception {
+        // given
+        ZonedDateTime now = ZonedDateTime.now();
+        List<UUID> aggregateIds = IntStream.range(0, 5).mapToObj(i -> UUID.randomUUID()).sorted()
+                                           .collect(Collectors.toList());
+        eventStore.append(new CounterCreated(aggregateIds.get(0), "orders", now.minusDays(2)));
+        eventStore.append(new CounterCreated(aggregateIds.get(1), "orders-eu", now.minusDays(1)));
+        eventStore.append(new CounterCreated(aggregateIds.get(2), "visits", now));
+        eventStore.append(new CounterCreated(aggregateIds.get(3), "orders-us", now));
+        eventStore.append(new CounterSuspended(aggregateIds.get(3)));
+        // reads of unknown aggregate leave nothing behind
+        assertThat(eventStore.read(UUID.randomUUID())).isEmpty();
+        assertThat(eventStore.loadAggregate(UUID.randomUUID()).getVersion()).isZero();
+        eventStore.preDestroy();
+        EventStore reopened = new EventStore(dbPath, objectMapper);
+        reopened.postConstruct();
+        reopened.append(new CounterCreated(aggregateIds.get(4), "visits-eu", now));
+        CounterProjections projections = new CounterProjections(true, reopened);
+        projections.start();
+        await(() -> projections.getPosition() == 6L);
+
+        // when
+        List<UUID> firstPage = reopened.findAll(null, 2, aggregateId -> true);
+        List<UUID> secondPage = reopened.findAll(firstPage.get(1), 2, aggregateId -> true);
+        List<UUID> lastPage = reopened.findAll(secondPage.get(1), 2, aggregateId -> true);
+
+        // then
+        assertThat(reopened.findAll()).containsExactlyElementsOf(aggregateIds);
+        assertThat(firstPage).containsExactlyElementsOf(aggregateIds.subList(0, 2));
+        assertThat(secondPage).containsExactlyElementsOf(aggregateIds.subList(2, 4));
+        assertThat(lastPage).containsExactly(aggregateIds.get(4));
+        assertThat(reopened.findAll(null, 10, projections.matching("orders", false, null, null)))
+                .containsExactly(aggregateIds.get(0), aggregateIds.get(1));
+        assertThat(reopened.findAll(aggregateIds.get(0), 10, projections.matching("orders", null, null, null)))
+                .containsExactly(aggregateIds.get(1), aggregateIds.get(3));
+        assertThat(reopened.findAll(null, 10, projections.matching(null, null, now.minusHours(36), now.minusHours(12))))
+                .containsExactly(aggregateIds.get(1));
+        assertThat(reopened.findAll(null, 10, projections.matching(null, true, null, null)))
+                .containsExactly(aggregateIds.get(3));
+        reopened.cleanupAll();
+        assertThat(reopened.findAll()).isEmpty();
+        projections.stop();
+        reopened.preDestroy();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) fail("condition is not met within 5000 ms");
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package daggerok.domain;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import daggerok.eventstore.EventStore;
+import daggerok.eventstore.events.CounterCreated;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.Response;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.fail;
+
+class CounterResourceTest {
+
+    private Path dbPath = Paths.get("target", "test-db-" + System.currentTimeMillis());
+
+    private ObjectMapper objectMapper = JsonMapper.builder()
+                                                  .addModules(new JavaTimeModule())
+                                                  .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+                                                  .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                                                  .disable(SerializationFeature.WRITE_DURATIONS_AS_TIMESTAMPS)
+                                                  .disable(SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                                                  .disable(DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                                                  .build();
+
+    private EventStore eventStore = new EventStore(dbPath, objectMapper);
+
+    @BeforeEach
+    void setUp() {
+        eventStore.postConstruct();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        eventStore.preDestroy();
+        if (Files.notExists(dbPath)) return;
+        try (Stream<Path> paths = Files.walk(dbPath)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void should_not_filter_counters_until_projections_are_live() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        eventStore.append(new CounterCreated(aggregateId, "filtered"));
+        CounterProjections projections = new CounterProjections(true, eventStore);
+        CounterResource counterResource = new CounterResource(null, eventStore, projections);
+
+        // when
+        Response unfiltered = counterResource.findAll(null, 100, null, null, null, null);
+
+        // then
+        assertThat(((Map<?, ?>) unfiltered.getEntity()).get("aggregateIds")).isEqualTo(Arrays.asList(aggregateId));
+        assertThatThrownBy(() -> counterResource.findAll(null, 100, "filt", null, null, null))
+                .isInstanceOf(ServiceUnavailableException.class)
+                .hasMessageContaining("position 0 of 1");
+
+        // and when
+        projections.start();
+        await(projections::isLive);
+
+        // then
+        Response filtered = counterResource.findAll(null, 100, "filt", null, null, null);
+        assertThat(((Map<?, ?>) filtered.getEntity()).get("aggregateIds")).isEqualTo(Arrays.asList(aggregateId));
+        projections.stop();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) fail("condition is not met within 5000 ms");
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
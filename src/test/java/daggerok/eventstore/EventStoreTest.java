@@ -1,5 +1,6 @@
 package daggerok.eventstore;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -9,17 +10,56 @@ import daggerok.domain.Counter;
 import daggerok.eventstore.events.CounterCreated;
 import daggerok.eventstore.events.CounterIncremented;
 import daggerok.eventstore.events.CounterSuspended;
+import daggerok.eventstore.events.DomainEvent;
+import daggerok.infrastructure.StartupPhases;
+import io.vavr.control.Try;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.SseEventSink;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.tuple;
 
 class EventStoreTest {
 
+    private static final TypeReference<Map<String, Object>> STRING_OBJECT_MAP = new TypeReference<>() {};
+
     private Path dbPath = Paths.get("target", "test-db-" + System.currentTimeMillis());
 
     private ObjectMapper objectMapper = JsonMapper.builder()
@@ -39,6 +79,15 @@ class EventStoreTest {
         // eventStore.cleanupAll();
     }
 
+    @AfterEach
+    void tearDown() throws Exception {
+        eventStore.preDestroy();
+        if (Files.notExists(dbPath)) return;
+        try (Stream<Path> paths = Files.walk(dbPath)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
     @Test
     void should_create_snapshot() {
         // given
@@ -87,4 +136,851 @@ class EventStoreTest {
         assertThat(eventStore.read(aggregateId)).isNotNull()
                                                 .isEmpty();
     }
+
+    @Test
+    void should_load_aggregate_from_snapshot_and_tail_events() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        Counter counter = new Counter();
+        counter.create(aggregateId, "snapshot");
+        counter.increment("max", 2L);
+        eventStore.snapshot(counter);
+
+        // when
+        eventStore.appendAll(new CounterIncremented(aggregateId, "max", 3L, null),
+                             new CounterSuspended(aggregateId));
+        Counter loaded = eventStore.loadAggregate(aggregateId);
+
+        // then
+        assertThat(loaded.getName()).isEqualTo("snapshot");
+        assertThat(loaded.getCounter()).isEqualTo(5L);
+        assertThat(loaded.isSuspended()).isTrue();
+        assertThat(loaded.getVersion()).isEqualTo(4L);
+        assertThat(objectMapper.readValue(objectMapper.writeValueAsString(loaded), STRING_OBJECT_MAP))
+                .doesNotContainKeys("version", "eventStream");
+        assertThat(loaded.getEventStream()).isEmpty();
+        assertThat(Counter.rebuild(new Counter(), eventStore.read(aggregateId)))
+                .usingRecursiveComparison()
+                .ignoringFields("createdAt", "modifiedAt")
+                .isEqualTo(loaded);
+    }
+
+    @Test
+    void should_serve_hot_aggregates_from_cache() {
+        // given
+        AggregateCache aggregateCache = new AggregateCache(2);
+        EventStore eventStore = new EventStore(new FileStorageEngine(dbPath, objectMapper),
+                                               objectMapper, aggregateCache);
+        UUID aggregateId = UUID.randomUUID();
+        eventStore.appendAll(new CounterCreated(aggregateId), new CounterIncremented(aggregateId));
+        eventStore.loadAggregate(aggregateId);
+
+        // when
+        eventStore.append(new CounterIncremented(aggregateId, "max", 5L, null));
+        Counter counter = eventStore.loadAggregate(aggregateId);
+
+        // then
+        assertThat(counter.getCounter()).isEqualTo(6L);
+        assertThat(aggregateCache.getMisses()).isEqualTo(1L);
+        assertThat(aggregateCache.getHits()).isEqualTo(1L);
+
+        // and when
+        eventStore.cleanupAll();
+
+        // then
+        assertThat(aggregateCache.size()).isZero();
+        assertThat(eventStore.loadAggregate(aggregateId).getAggregateId()).isNull();
+    }
+
+    @Test
+    void should_share_rolling_segments_between_aggregates() {
+        // given
+        EventStore eventStore = new EventStore(new SegmentStorageEngine(dbPath, objectMapper, 1024),
+                                               objectMapper, new AggregateCache(0));
+        eventStore.postConstruct();
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        Counter counter = new Counter();
+        counter.create(first, "first");
+        counter.increment("max", 2L);
+        eventStore.snapshot(counter);
+        for (int i = 0; i < 10; i++) {
+            eventStore.appendAll(new CounterIncremented(first), new CounterCreated(second));
+        }
+        eventStore.preDestroy();
+
+        // when
+        EventStore reopened = new EventStore(new SegmentStorageEngine(dbPath, objectMapper, 1024),
+                                             objectMapper, new AggregateCache(0));
+        reopened.postConstruct();
+
+        // then
+        assertThat(dbPath.toFile().list()).hasSizeGreaterThan(1);
+        assertThat(reopened.findAll()).containsExactlyInAnyOrder(first, second);
+        assertThat(reopened.read(first)).hasSize(12);
+        assertThat(reopened.read(second)).hasSize(10);
+        assertThat(reopened.loadAggregate(first).getCounter()).isEqualTo(12L);
+        assertThat(reopened.loadAggregate(first).getVersion()).isEqualTo(12L);
+        reopened.preDestroy();
+    }
+
+    @Test
+    void should_rebuild_missing_or_corrupt_segments_index() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        EventStore eventStore = new EventStore(new SegmentStorageEngine(dbPath, objectMapper, 512),
+                                               objectMapper, new AggregateCache(0));
+        eventStore.postConstruct();
+        eventStore.appendAll(new CounterCreated(aggregateId), new CounterIncremented(aggregateId, "max", 2L, null));
+        eventStore.preDestroy();
+        Path index = dbPath.resolve(SegmentIndex.FILENAME);
+
+        for (byte[] corrupted : new byte[][] { null, "definitely not a segments index, just a garbage".getBytes() }) {
+            // when
+            if (corrupted == null) Files.delete(index);
+            else Files.write(index, corrupted);
+            EventStore reopened = new EventStore(new SegmentStorageEngine(dbPath, objectMapper, 512),
+                                                 objectMapper, new AggregateCache(0));
+            reopened.postConstruct();
+
+            // then
+            assertThat(reopened.loadAggregate(aggregateId).getCounter()).isEqualTo(2L);
+            assertThat(Files.size(index)).isEqualTo(2L * SegmentIndex.ENTRY_SIZE);
+            reopened.preDestroy();
+        }
+    }
+
+    @Test
+    void should_group_commit_concurrent_appends() throws Exception {
+        // given
+        EventStore eventStore = new EventStore(new SegmentStorageEngine(dbPath, objectMapper, 64 * 1024, 64, 1, true),
+                                               objectMapper, new AggregateCache(0));
+        eventStore.postConstruct();
+        List<UUID> aggregateIds = IntStream.range(0, 8)
+                                           .mapToObj(i -> UUID.randomUUID())
+                                           .collect(Collectors.toList());
+        ExecutorService executor = Executors.newFixedThreadPool(aggregateIds.size());
+
+        // when
+        List<Future<?>> futures = aggregateIds.stream()
+                                              .map(aggregateId -> executor.submit(() -> {
+                                                  for (int i = 0; i < 100; i++) {
+                                                      eventStore.append(new CounterIncremented(aggregateId));
+                                                  }
+                                              }))
+                                              .collect(Collectors.toList());
+        for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+        executor.shutdown();
+        eventStore.preDestroy();
+
+        // then
+        EventStore reopened = new EventStore(new SegmentStorageEngine(dbPath, objectMapper, 64 * 1024),
+                                             objectMapper, new AggregateCache(0));
+        reopened.postConstruct();
+        aggregateIds.forEach(aggregateId -> assertThat(reopened.read(aggregateId)).hasSize(100));
+        reopened.preDestroy();
+    }
+
+    @Test
+    void should_reject_stale_writer() {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        eventStore.append(aggregateId, 0L, new CounterCreated(aggregateId, "optimistic"));
+        Counter first = eventStore.loadAggregate(aggregateId);
+        Counter second = eventStore.loadAggregate(aggregateId);
+
+        // when
+        first.increment("first", 1L);
+        eventStore.snapshot(first);
+        second.increment("second", 2L);
+
+        // then
+        assertThatThrownBy(() -> eventStore.snapshot(second))
+                .isInstanceOf(ConcurrencyException.class)
+                .hasFieldOrPropertyWithValue("expectedVersion", 1L)
+                .hasFieldOrPropertyWithValue("actualVersion", 2L);
+        assertThatThrownBy(() -> eventStore.append(aggregateId, 0L, new CounterCreated(aggregateId, "again")))
+                .isInstanceOf(ConcurrencyException.class);
+        assertThat(eventStore.version(aggregateId)).isEqualTo(2L);
+        assertThat(eventStore.loadAggregate(aggregateId).getCounter()).isEqualTo(1L);
+    }
+
+    @Test
+    void should_not_lose_or_duplicate_events_under_parallel_load() throws Exception {
+        // given
+        List<UUID> aggregateIds = IntStream.range(0, 4)
+                                           .mapToObj(i -> UUID.randomUUID())
+                                           .collect(Collectors.toList());
+        aggregateIds.forEach(aggregateId -> eventStore.append(aggregateId, 0L,
+                                                              new CounterCreated(aggregateId, "stress")));
+        int threads = 16, iterations = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        // when: half of writers are blindly appending, another half are snapshotting with retries, all of them read
+        List<Future<?>> futures = IntStream.range(0, threads)
+                                           .mapToObj(thread -> executor.submit(() -> {
+                                               for (int i = 0; i < iterations; i++) {
+                                                   UUID aggregateId = aggregateIds.get((thread + i) % aggregateIds.size());
+                                                   if (thread % 2 == 0) {
+                                                       eventStore.append(new CounterIncremented(aggregateId, "blind", 1L, null));
+                                                   } else {
+                                                       while (true) {
+                                                           Counter counter = eventStore.loadAggregate(aggregateId);
+                                                           counter.increment("snapshot", 1L);
+                                                           try {
+                                                               eventStore.snapshot(counter);
+                                                               break;
+                                                           } catch (ConcurrencyException e) {
+                                                               // somebody else was faster, try again with fresh state
+                                                           }
+                                                       }
+                                                   }
+                                                   assertThat(eventStore.read(aggregateId)).isNotEmpty();
+                                               }
+                                           }))
+                                           .collect(Collectors.toList());
+        for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+        executor.shutdown();
+
+        // then
+        long perAggregate = threads * iterations / aggregateIds.size();
+        EventStore reopened = new EventStore(dbPath, objectMapper);
+        reopened.postConstruct();
+        aggregateIds.forEach(aggregateId -> {
+            assertThat(reopened.read(aggregateId)).hasSize((int) perAggregate + 1);
+            assertThat(reopened.version(aggregateId)).isEqualTo(perAggregate + 1);
+            assertThat(reopened.loadAggregate(aggregateId).getCounter()).isEqualTo(perAggregate);
+            assertThat(eventStore.loadAggregate(aggregateId).getCounter()).isEqualTo(perAggregate);
+        });
+        // $all stream has every event exactly once, at consecutive positions
+        int total = threads * iterations + aggregateIds.size();
+        assertThat(eventStore.readAll(0L, total + 1)).extracting(RecordedEvent::getPosition)
+                                                   .containsExactlyElementsOf(LongStream.range(0, total)::iterator);
+    }
+
+    @Test
+    void should_stream_serialize_only_registered_event_types() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        JsonEventCodec eventCodec = new JsonEventCodec(objectMapper);
+        CounterIncremented incremented = new CounterIncremented(aggregateId, "max", 2L, null);
+        DomainEvent unknown = unknownEvent(aggregateId);
+
+        // when
+        byte[] record = eventCodec.encode(incremented);
+
+        // then
+        assertThat(new String(record, UTF_8)).isEqualTo(objectMapper.writeValueAsString(incremented));
+        assertThatThrownBy(() -> eventStore.append(aggregateId, 0L, incremented, unknown))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(eventStore.read(aggregateId)).isEmpty();
+    }
+
+    @Test
+    void should_stream_events_page_as_ndjson() {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        eventStore.append(aggregateId, 0L, new CounterCreated(aggregateId, "stream"),
+                          new CounterIncremented(aggregateId, "max", 1L, null),
+                          new CounterIncremented(aggregateId, "max", 2L, null),
+                          new CounterIncremented(aggregateId, "max", 3L, null));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // when
+        eventStore.stream(aggregateId, 1L, 2L, output);
+
+        // then
+        List<String> lines = Arrays.asList(new String(output.toByteArray(), UTF_8).split("\n"));
+        assertThat(lines).hasSize(2);
+        assertThat(lines).allSatisfy(line -> assertThat(line).contains("\"type\":\"CounterIncremented\""));
+        assertThat(lines.get(0)).contains("\"withValue\":1");
+        assertThat(lines.get(1)).contains("\"withValue\":2");
+    }
+
+    @Test
+    void should_not_hold_aggregate_lock_while_streaming_to_slow_client() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        eventStore.append(aggregateId, 0L, new CounterCreated(aggregateId, "slow"),
+                          new CounterIncremented(aggregateId, "max", 1L, null));
+        CountDownLatch streaming = new CountDownLatch(1), snapshotted = new CountDownLatch(1);
+        ByteArrayOutputStream slowClient = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                streaming.countDown();
+                Try.run(() -> snapshotted.await(10, TimeUnit.SECONDS));
+                super.write(bytes, offset, length);
+            }
+        };
+        CompletableFuture<Void> streamed = CompletableFuture.runAsync(
+                () -> eventStore.stream(aggregateId, 0L, 10L, slowClient));
+        assertThat(streaming.await(10, TimeUnit.SECONDS)).isTrue();
+
+        // when
+        Counter counter = eventStore.loadAggregate(aggregateId);
+        counter.increment("max", 2L);
+        eventStore.snapshot(counter);
+
+        // then
+        assertThat(streamed).isNotDone();
+        snapshotted.countDown();
+        streamed.get(10, TimeUnit.SECONDS);
+        assertThat(new String(slowClient.toByteArray(), UTF_8).split("\n")).hasSize(2);
+        assertThat(eventStore.read(aggregateId)).hasSize(3);
+    }
+
+    @Test
+    void should_append_batch_atomically_per_aggregate() {
+        // given
+        UUID first = UUID.randomUUID(), second = UUID.randomUUID();
+        eventStore.append(first, 0L, new CounterCreated(first, "first"));
+
+        // when
+        Map<UUID, Long> versions = eventStore.appendBatch(Arrays.asList(
+                new CounterCreated(second, "second"),
+                new CounterIncremented(first, "max", 2L, null),
+                new CounterIncremented(second, "max", 3L, null),
+                new CounterIncremented(first, "max", 4L, null)));
+
+        // then
+        assertThat(versions).containsExactly(entry(second, 2L), entry(first, 3L));
+        assertThat(eventStore.loadAggregate(first).getCounter()).isEqualTo(6L);
+        assertThat(eventStore.loadAggregate(second).getCounter()).isEqualTo(3L);
+        assertThatThrownBy(() -> eventStore.appendBatch(Arrays.asList(new CounterIncremented(first),
+                                                                      unknownEvent(second))))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(eventStore.version(first)).isEqualTo(3L);
+    }
+
+    @Test
+    void should_snapshot_in_background_after_events_threshold() throws Exception {
+        // given
+        FileStorageEngine storageEngine = new FileStorageEngine(dbPath, objectMapper);
+        EventStore eventStore = new EventStore(storageEngine, objectMapper, new AggregateCache(0),
+                                               new Snapshotter(3, 0, 1, 16));
+        eventStore.postConstruct();
+        UUID aggregateId = UUID.randomUUID();
+        Counter counter = new Counter();
+        counter.create(aggregateId, "background");
+        eventStore.save(counter);
+
+        // when
+        counter.increment("max", 1L);
+        eventStore.save(counter);
+        assertThat(storageEngine.readSnapshot(aggregateId)).isEmpty();
+        counter.increment("max", 2L);
+        eventStore.save(counter);
+
+        // then
+        await(() -> storageEngine.readSnapshot(aggregateId).isPresent(), 10_000);
+        assertThat(storageEngine.readSnapshot(aggregateId)).hasValueSatisfying(snapshot -> {
+            assertThat(snapshot.getVersion()).isEqualTo(3L);
+            assertThat(snapshot.getAggregate().getCounter()).isEqualTo(3L);
+        });
+        assertThat(counter.getEventStream()).isEmpty();
+        eventStore.preDestroy();
+    }
+
+    @Test
+    void should_read_memory_mapped_event_logs() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        Counter counter = new Counter();
+        counter.create(aggregateId, "mmap");
+        counter.increment("max", 2L);
+        eventStore.snapshot(counter);
+        eventStore.appendAll(new CounterIncremented(aggregateId, "max", 3L, null));
+        Files.write(dbPath.resolve(aggregateId + ".json.log"), "  \r\n\n".getBytes(UTF_8), StandardOpenOption.APPEND);
+        eventStore.appendAll(new CounterSuspended(aggregateId));
+
+        // when
+        EventStore mapped = new EventStore(new FileStorageEngine(dbPath, objectMapper, true), objectMapper,
+                                           new AggregateCache(0));
+        mapped.postConstruct();
+
+        // then
+        assertThat(mapped.read(aggregateId)).hasSize(4)
+                                             .usingRecursiveFieldByFieldElementComparator()
+                                             .containsExactlyElementsOf(eventStore.read(aggregateId));
+        assertThat(mapped.loadAggregate(aggregateId))
+                .usingRecursiveComparison()
+                .isEqualTo(new EventStore(dbPath, objectMapper).loadAggregate(aggregateId));
+    }
+
+    @Test
+    void should_warm_up_all_aggregates_in_parallel() throws Exception {
+        // given
+        List<UUID> aggregateIds = IntStream.range(0, 20)
+                                           .mapToObj(i -> UUID.randomUUID())
+                                           .collect(Collectors.toList());
+        aggregateIds.forEach(aggregateId -> eventStore.appendAll(new CounterCreated(aggregateId, "warm"),
+                                                                 new CounterIncremented(aggregateId)));
+        eventStore.append(new CounterIncremented(aggregateIds.get(0)));
+        eventStore.preDestroy();
+        AggregateCache aggregateCache = new AggregateCache(10);
+        EventStore restarted = new EventStore(new FileStorageEngine(dbPath, objectMapper),
+                                              new JsonEventCodec(objectMapper), objectMapper,
+                                              aggregateCache, Snapshotter.disabled(),
+                                              new AllStream(dbPath, AllStream.DEFAULT_LIVE_EVENTS));
+        restarted.postConstruct();
+        WarmUp warmUp = new WarmUp(true, 4, aggregateCache.getMaxSize(), restarted);
+
+        // when
+        warmUp.start().get(1, TimeUnit.MINUTES);
+
+        // then: only as many aggregates as cache can hold are warmed up, most recently appended ones
+        List<UUID> recent = IntStream.of(0, 19, 18, 17, 16, 15, 14, 13, 12, 11)
+                                     .mapToObj(aggregateIds::get)
+                                     .collect(Collectors.toList());
+        assertThat(restarted.findRecent(10)).containsExactlyElementsOf(recent);
+        assertThat(warmUp.isDone()).isTrue();
+        assertThat(warmUp.getTotal()).isEqualTo(10);
+        assertThat(warmUp.getWarmed()).isEqualTo(10);
+        assertThat(warmUp.getFailed()).isZero();
+        long misses = aggregateCache.getMisses();
+        recent.forEach(aggregateId -> assertThat(restarted.loadAggregate(aggregateId).getCounter())
+                .isEqualTo(aggregateId.equals(aggregateIds.get(0)) ? 2L : 1L));
+        assertThat(aggregateCache.getMisses()).isEqualTo(misses);
+        assertThat(aggregateCache.getEvictions()).isZero();
+        restarted.preDestroy();
+    }
+
+    @Test
+    void should_store_compact_binary_events() {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        BinaryEventCodec binaryCodec = new BinaryEventCodec();
+        JsonEventCodec jsonCodec = new JsonEventCodec(objectMapper);
+        EventStore eventStore = new EventStore(new SegmentStorageEngine(dbPath, objectMapper, 64 * 1024), binaryCodec,
+                                               objectMapper, new AggregateCache(0), Snapshotter.disabled());
+        eventStore.postConstruct();
+        List<DomainEvent> events = Arrays.asList(new CounterCreated(aggregateId, "бінарний"),
+                                                 new CounterIncremented(aggregateId, "max", -2L, null),
+                                                 new CounterIncremented(aggregateId, "max", 300L, null),
+                                                 new CounterSuspended(aggregateId, "max", "because!", null));
+
+        // when
+        eventStore.appendBatch(events);
+
+        // then
+        events.forEach(event -> assertThat(binaryCodec.encode(event).length)
+                .isLessThan(jsonCodec.encode(event).length / 2));
+        assertThat(eventStore.read(aggregateId))
+                .usingRecursiveFieldByFieldElementComparator()
+                .containsExactlyElementsOf(events.stream()
+                                                  .map(event -> jsonCodec.decode(jsonCodec.encode(event)))
+                                                  .collect(Collectors.toList()));
+        assertThat(eventStore.loadAggregate(aggregateId).getCounter()).isEqualTo(298L);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        eventStore.stream(aggregateId, 0L, Long.MAX_VALUE, output);
+        assertThat(new String(output.toByteArray(), UTF_8).split("\n"))
+                .hasSize(4)
+                .allSatisfy(line -> assertThat(line).startsWith("{\"type\":\"Counter"));
+        byte[] corrupted = binaryCodec.encode(events.get(0));
+        corrupted[corrupted.length / 2] ^= 1;
+        assertThatThrownBy(() -> binaryCodec.decode(corrupted)).hasMessageContaining("checksum");
+        eventStore.preDestroy();
+    }
+
+    @Test
+    void should_truncate_torn_tails_on_recovery() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        eventStore.appendAll(new CounterCreated(aggregateId), new CounterIncremented(aggregateId, "max", 2L, null));
+        eventStore.preDestroy();
+        Path eventLog = dbPath.resolve(aggregateId + ".json.log");
+        long eventLogSize = Files.size(eventLog);
+        Files.write(eventLog, "{\"type\":\"CounterIncremented\",\"aggreg".getBytes(UTF_8), StandardOpenOption.APPEND);
+        Path segmentsPath = dbPath.resolve("segments");
+        EventStore segmentStore = new EventStore(new SegmentStorageEngine(segmentsPath, objectMapper, 64 * 1024),
+                                                 objectMapper, new AggregateCache(0));
+        segmentStore.postConstruct();
+        segmentStore.appendAll(new CounterCreated(aggregateId), new CounterIncremented(aggregateId, "max", 2L, null));
+        segmentStore.preDestroy();
+        Path segment = segmentsPath.resolve("0000000000.segment.log");
+        long segmentSize = Files.size(segment);
+        byte[] segmentBytes = Files.readAllBytes(segment);
+        byte[] torn = Arrays.copyOfRange(segmentBytes, 0, Integer.BYTES + ByteBuffer.wrap(segmentBytes).getInt());
+        torn[torn.length - 1] ^= 1; // complete first record copy, but with wrong checksum
+        Files.write(segment, torn, StandardOpenOption.APPEND);
+
+        // when
+        EventStore reopened = new EventStore(dbPath, objectMapper);
+        reopened.postConstruct();
+        EventStore reopenedSegments = new EventStore(new SegmentStorageEngine(segmentsPath, objectMapper, 64 * 1024),
+                                                     objectMapper, new AggregateCache(0));
+        reopenedSegments.postConstruct();
+
+        // then
+        assertThat(Files.size(eventLog)).isEqualTo(eventLogSize);
+        assertThat(reopened.loadAggregate(aggregateId).getCounter()).isEqualTo(2L);
+        assertThat(Files.size(segment)).isEqualTo(segmentSize);
+        reopenedSegments.append(new CounterIncremented(aggregateId, "max", 3L, null));
+        assertThat(reopenedSegments.loadAggregate(aggregateId).getCounter()).isEqualTo(5L);
+        reopenedSegments.preDestroy();
+        byte[] corrupted = Files.readAllBytes(segment);
+        corrupted[corrupted.length - 2] ^= 1;
+        Files.write(segment, corrupted);
+        EventStore corruptedSegments = new EventStore(new SegmentStorageEngine(segmentsPath, objectMapper, 64 * 1024),
+                                                      objectMapper, new AggregateCache(0));
+        corruptedSegments.postConstruct();
+        assertThatThrownBy(() -> corruptedSegments.read(aggregateId)).hasMessageContaining("checksum");
+        corruptedSegments.preDestroy();
+    }
+
+    @Test
+    void should_read_and_subscribe_to_globally_ordered_all_stream() throws Exception {
+        // given
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        eventStore.append(new CounterCreated(first, "first"));
+        eventStore.append(new CounterCreated(second, "second"));
+        eventStore.appendBatch(Arrays.asList(new CounterIncremented(first, "max", 1L, null),
+                                             new CounterIncremented(second, "max", 2L, null),
+                                             new CounterIncremented(first, "max", 3L, null)));
+        eventStore.preDestroy();
+        Files.delete(dbPath.resolve(AllStream.FILENAME));
+
+        // when
+        EventStore reopened = new EventStore(dbPath, objectMapper);
+        reopened.postConstruct();
+        List<RecordedEvent> received = new CopyOnWriteArrayList<>();
+        CatchUpSubscription subscription = reopened.subscribe(1L, received::add);
+        reopened.append(new CounterSuspended(second, "max", "done", null));
+
+        // then
+        assertThat(reopened.position()).isEqualTo(6L);
+        List<RecordedEvent> all = reopened.readAll(0L, 100);
+        assertThat(all).extracting(RecordedEvent::getPosition).containsExactly(0L, 1L, 2L, 3L, 4L, 5L);
+        assertThat(all.subList(0, 5)).extracting(RecordedEvent::getAggregateId)
+                                     .containsExactlyInAnyOrder(first, first, first, second, second);
+        assertThat(all.get(5).getEvent()).isInstanceOf(CounterSuspended.class);
+        assertThat(all.get(5).getVersion()).isEqualTo(3L);
+        assertThat(all.stream().filter(event -> first.equals(event.getAggregateId())))
+                .extracting(RecordedEvent::getVersion)
+                .containsExactly(1L, 2L, 3L);
+        assertThat(reopened.readAll(4L, 100)).extracting(RecordedEvent::getPosition).containsExactly(4L, 5L);
+        assertThat(reopened.readAll(6L, 100)).isEmpty();
+        await(() -> received.size() >= 5);
+        // live event is delivered as it was appended, not as it was read back from disk (with truncated timestamp)
+        assertThat(received).usingRecursiveComparison()
+                            .ignoringFields("event.at")
+                            .isEqualTo(all.subList(1, 6));
+        assertThat(subscription.isLive()).isTrue();
+        subscription.close();
+        reopened.preDestroy();
+    }
+
+    @Test
+    void should_skip_all_stream_holes_and_recover_their_events() throws Exception {
+        // given: nil UUID is a valid aggregate id, its first event is not recorded (like after a failed write)
+        UUID nil = new UUID(0L, 0L);
+        UUID other = UUID.randomUUID();
+        eventStore.append(new CounterCreated(nil, "nil"));
+        eventStore.append(new CounterCreated(other, "other"));
+        eventStore.append(new CounterIncremented(nil));
+        eventStore.preDestroy();
+        byte[] entries = Files.readAllBytes(dbPath.resolve(AllStream.FILENAME));
+        Arrays.fill(entries, 0, AllStream.ENTRY_SIZE, (byte) 0);
+        Files.write(dbPath.resolve(AllStream.FILENAME), entries);
+        Files.delete(dbPath.resolve(AllStream.CLEAN_SHUTDOWN));
+
+        // when
+        EventStore reopened = new EventStore(dbPath, objectMapper);
+        reopened.postConstruct();
+        List<RecordedEvent> received = new CopyOnWriteArrayList<>();
+        CatchUpSubscription subscription = reopened.subscribe(0L, received::add);
+
+        // then: hole is skipped, its event is recovered at the end of $all stream, followed by the next one (its entry
+        // becomes a hole), so events of aggregate stay in order
+        assertThat(reopened.position()).isEqualTo(5L);
+        assertThat(reopened.readAll(0L, 1)).isEmpty();
+        List<RecordedEvent> all = reopened.readAll(0L, 100);
+        assertThat(all).extracting(RecordedEvent::getPosition).containsExactly(1L, 3L, 4L);
+        assertThat(all).extracting(RecordedEvent::getAggregateId).containsExactly(other, nil, nil);
+        assertThat(all).extracting(RecordedEvent::getVersion).containsExactly(1L, 1L, 2L);
+        assertThat(all.get(1).getEvent()).isInstanceOf(CounterCreated.class);
+        await(() -> received.size() == 3);
+        assertThat(received).extracting(RecordedEvent::getPosition).containsExactly(1L, 3L, 4L);
+        subscription.close();
+        reopened.preDestroy();
+        assertThat(dbPath.resolve(AllStream.CLEAN_SHUTDOWN)).exists();
+    }
+
+    @Test
+    void should_recover_only_aggregates_appended_since_all_stream_checkpoint() throws Exception {
+        // given
+        Path segmentsPath = dbPath.resolve("segments");
+        Set<UUID> checked = ConcurrentHashMap.newKeySet();
+        UUID old = UUID.randomUUID();
+        UUID hot = UUID.randomUUID();
+        UUID fresh = UUID.randomUUID();
+        EventStore crashed = checkpointedEventStore(segmentsPath, ConcurrentHashMap.newKeySet());
+        crashed.postConstruct();
+        crashed.append(new CounterCreated(old, "old"));
+        crashed.appendAll(new CounterCreated(hot, "hot"), new CounterIncremented(hot));
+        crashed.checkpointAll();
+        crashed.append(new CounterCreated(fresh, "fresh"));
+        crashed.append(new CounterIncremented(hot));
+        crashed.preDestroy();
+        // entry of fresh aggregate is a hole, the last one (of hot aggregate) is lost
+        Path index = segmentsPath.resolve(AllStream.FILENAME);
+        byte[] entries = Arrays.copyOf(Files.readAllBytes(index), 4 * AllStream.ENTRY_SIZE);
+        Arrays.fill(entries, 3 * AllStream.ENTRY_SIZE, entries.length, (byte) 0);
+        Files.write(index, entries);
+        Files.delete(segmentsPath.resolve(AllStream.CLEAN_SHUTDOWN));
+        assertThat(segmentsPath.resolve(AllStream.CHECKPOINT)).exists();
+
+        // when
+        EventStore reopened = checkpointedEventStore(segmentsPath, checked);
+        reopened.postConstruct();
+
+        // then: aggregate not appended since checkpoint is not checked
+        assertThat(checked).containsExactlyInAnyOrder(hot, fresh);
+        assertThat(StartupPhases.getMillis()).containsKey("storeRecovery");
+        List<RecordedEvent> all = reopened.readAll(0L, 100);
+        assertThat(all).extracting(RecordedEvent::getPosition).containsExactly(0L, 1L, 2L, 4L, 5L);
+        assertThat(all.subList(0, 3)).extracting(RecordedEvent::getAggregateId).containsExactly(old, hot, hot);
+        assertThat(all.subList(3, 5)).extracting(RecordedEvent::getAggregateId, RecordedEvent::getVersion)
+                                     .containsExactlyInAnyOrder(tuple(fresh, 1L), tuple(hot, 3L));
+        reopened.preDestroy();
+    }
+
+    @Test
+    void should_catch_up_hot_aggregate_and_start_over_after_cleanup() throws Exception {
+        // given
+        UUID hot = UUID.randomUUID();
+        UUID cold = UUID.randomUUID();
+        eventStore.append(new CounterCreated(hot, "hot"));
+        eventStore.append(new CounterCreated(cold, "cold"));
+        eventStore.appendBatch(IntStream.range(0, CatchUpSubscription.PAGE_SIZE * 3)
+                                        .mapToObj(i -> new CounterIncremented(hot, "max", 1L, null))
+                                        .collect(Collectors.toList()));
+        long total = eventStore.position();
+
+        // when
+        List<RecordedEvent> received = new CopyOnWriteArrayList<>();
+        AtomicInteger cleanups = new AtomicInteger();
+        CatchUpSubscription subscription = eventStore.subscribe(0L, received::add, () -> {
+            cleanups.incrementAndGet();
+            received.clear();
+        });
+        await(() -> received.size() == total);
+        assertThat(received.stream().filter(event -> hot.equals(event.getAggregateId())))
+                .extracting(RecordedEvent::getVersion)
+                .containsExactlyElementsOf(LongStream.rangeClosed(1, total - 1).boxed().collect(Collectors.toList()));
+        eventStore.cleanupAll();
+        eventStore.append(new CounterCreated(cold, "after cleanup"));
+
+        // then
+        await(() -> cleanups.get() == 1 && received.size() == 1);
+        assertThat(received.get(0).getPosition()).isEqualTo(0L);
+        assertThat(received.get(0).getAggregateId()).isEqualTo(cold);
+        assertThat(received.get(0).getVersion()).isEqualTo(1L);
+        assertThat(subscription.isRunning()).isTrue();
+        subscription.close();
+    }
+
+    @Test
+    void should_fan_out_live_events_to_sse_subscribers() throws Exception {
+        // given
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        EventBroadcaster disconnecting = new EventBroadcaster(16, 8, EventBroadcaster.SlowSubscribers.DISCONNECT, 2,
+                                                              eventStore, objectMapper);
+        EventBroadcaster dropping = new EventBroadcaster(16, 8, EventBroadcaster.SlowSubscribers.DROP, 2,
+                                                         eventStore, objectMapper);
+        CountDownLatch slowClient = new CountDownLatch(1);
+        TestSink all = new TestSink(null);
+        TestSink onlySecond = new TestSink(null);
+        TestSink slowDisconnected = new TestSink(slowClient);
+        TestSink slowDropping = new TestSink(slowClient);
+        disconnecting.subscribe(all, null, null, -1L);
+        disconnecting.subscribe(onlySecond, second, "CounterIncremented", -1L);
+        disconnecting.subscribe(slowDisconnected, null, null, -1L);
+        dropping.subscribe(slowDropping, null, null, -1L);
+
+        // when
+        eventStore.append(new CounterCreated(second, "second"));
+        for (int i = 1; i <= 10; i++) {
+            int received = i;
+            eventStore.append(new CounterIncremented(i % 5 == 1 ? second : first));
+            await(() -> all.events.size() == received + 1); // fast client is never lagging behind
+        }
+        slowClient.countDown();
+
+        // then
+        await(() -> disconnecting.getDisconnected() == 1 && dropping.getDropped() > 0);
+        assertThat(all.events).extracting(OutboundSseEvent::getId)
+                              .containsExactly("0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10");
+        assertThat(onlySecond.events).extracting(OutboundSseEvent::getId).containsExactly("1", "6");
+        assertThat(onlySecond.events.get(0).getName()).isEqualTo("CounterIncremented");
+        assertThat(new String(((EventStreamFrame) onlySecond.events.get(0)).getBytes(), UTF_8))
+                .startsWith("event: CounterIncremented\nid: 1\ndata: {")
+                .endsWith("}\n");
+        assertThat(objectMapper.readValue((String) onlySecond.events.get(0).getData(), STRING_OBJECT_MAP))
+                .containsEntry("position", 1)
+                .containsEntry("aggregateId", second.toString());
+        assertThat(slowDisconnected.isClosed()).isTrue();
+        assertThat(disconnecting.getSubscribers()).isEqualTo(2);
+        assertThat(slowDropping.isClosed()).isFalse();
+        assertThat(dropping.getSubscribers()).isEqualTo(1);
+        TestSink resumed = new TestSink(null);
+        disconnecting.subscribe(resumed, null, null, 7L);
+        await(() -> resumed.events.size() == 3);
+        assertThat(resumed.events).extracting(OutboundSseEvent::getId).containsExactly("8", "9", "10");
+        disconnecting.stop();
+        dropping.stop();
+    }
+
+    @Test
+    void should_disconnect_stalled_sse_subscribers_and_reset_them_on_cleanup() throws Exception {
+        // given
+        UUID aggregateId = UUID.randomUUID();
+        EventBroadcaster broadcaster = new EventBroadcaster(16, 8, EventBroadcaster.SlowSubscribers.DISCONNECT, 1,
+                                                            100L, eventStore, objectMapper);
+        TestSink stalled = new TestSink(null, true);
+        TestSink fast = new TestSink(null);
+        broadcaster.subscribe(stalled, null, null, -1L);
+        broadcaster.subscribe(fast, null, null, -1L);
+
+        // when
+        eventStore.append(new CounterCreated(aggregateId, "stalled"));
+        eventStore.append(new CounterIncremented(aggregateId));
+
+        // then: single sender thread is not held by stalled client
+        await(() -> fast.events.size() == 2 && stalled.isClosed());
+        assertThat(broadcaster.getSubscribers()).isEqualTo(1);
+
+        // and when
+        eventStore.cleanupAll();
+        await(fast::isClosed);
+        TestSink resubscribed = new TestSink(null);
+        broadcaster.subscribe(resubscribed, null, null, 1L);
+        eventStore.append(new CounterCreated(aggregateId, "after cleanup"));
+
+        // then
+        await(() -> resubscribed.events.size() == 1);
+        assertThat(resubscribed.events).extracting(OutboundSseEvent::getId).containsExactly("0");
+        assertThat(broadcaster.getSubscribers()).isEqualTo(1);
+        broadcaster.stop();
+    }
+
+    @Test
+    void should_run_blocking_io_asynchronously_on_bounded_executor() throws Exception {
+        // given
+        IoExecutor ioExecutor = new IoExecutor(1, 1, false);
+        EventStore asyncEventStore = new EventStore(new FileStorageEngine(dbPath, objectMapper),
+                                                    new JsonEventCodec(objectMapper), objectMapper,
+                                                    new AggregateCache(0), Snapshotter.disabled(),
+                                                    AllStream.disabled(), ioExecutor);
+        asyncEventStore.postConstruct();
+        UUID aggregateId = UUID.randomUUID();
+        Counter counter = new Counter();
+        counter.create(aggregateId, "async");
+        asyncEventStore.saveAsync(counter).toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        // when
+        CompletableFuture<String> ioThread = asyncEventStore.loadAggregateAsync(aggregateId)
+                                                            .thenCompose(loaded -> {
+                                                                loaded.increment("max", 2L);
+                                                                return asyncEventStore.saveAsync(loaded);
+                                                            })
+                                                            .thenApply(saved -> Thread.currentThread().getName())
+                                                            .toCompletableFuture();
+        String ioThreadName = ioThread.get(5, TimeUnit.SECONDS);
+        CountDownLatch slowDisk = new CountDownLatch(1);
+        CompletableFuture<Boolean> running = ioExecutor.submit(() -> Try.run(slowDisk::await).isSuccess())
+                                                       .toCompletableFuture();
+        CompletableFuture<Counter> queued = asyncEventStore.loadAggregateAsync(aggregateId).toCompletableFuture();
+        CompletableFuture<Counter> rejected = asyncEventStore.loadAggregateAsync(aggregateId).toCompletableFuture();
+
+        // then
+        assertThat(ioThreadName).startsWith("event-store-io-");
+        assertThatThrownBy(() -> rejected.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+        assertThat(queued).isNotDone();
+        slowDisk.countDown();
+        assertThat(running.get(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(queued.get(5, TimeUnit.SECONDS).getCounter()).isEqualTo(2L);
+        assertThat(ioExecutor.getPending()).isZero();
+        ioExecutor.stop();
+        asyncEventStore.preDestroy();
+    }
+
+    private EventStore checkpointedEventStore(Path segmentsPath, Set<UUID> checked) {
+        StorageEngine storageEngine = new SegmentStorageEngine(segmentsPath, objectMapper, 64 * 1024) {
+            @Override
+            public long version(UUID aggregateId) {
+                checked.add(aggregateId);
+                return super.version(aggregateId);
+            }
+        };
+        return new EventStore(storageEngine, new JsonEventCodec(objectMapper), objectMapper, new AggregateCache(0),
+                              Snapshotter.disabled(), new AllStream(segmentsPath, AllStream.DEFAULT_LIVE_EVENTS, 0));
+    }
+
+    private static DomainEvent unknownEvent(UUID aggregateId) {
+        return new DomainEvent() {
+            @Override
+            public UUID getAggregateId() {
+                return aggregateId;
+            }
+
+            @Override
+            public String getEventName() {
+                return "unknown";
+            }
+        };
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        await(condition, 5000);
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) fail("condition is not met within %d ms", timeoutMillis);
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    // collects sent events, if latch is given, every send is blocked until it's released (slow client)
+    private static class TestSink implements SseEventSink {
+
+        private final List<OutboundSseEvent> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch latch;
+        private final boolean stalled;
+        private volatile boolean closed;
+
+        private TestSink(CountDownLatch latch) {
+            this(latch, false);
+        }
+
+        // stalled: client connection never accepts any event (send is never completed)
+        private TestSink(CountDownLatch latch, boolean stalled) {
+            this.latch = latch;
+            this.stalled = stalled;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public CompletionStage<?> send(OutboundSseEvent event) {
+            if (Objects.nonNull(event.getComment())) return CompletableFuture.completedFuture(null); // greeting
+            if (latch != null) Try.run(latch::await);
+            if (stalled) return new CompletableFuture<>();
+            events.add(event);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
 }
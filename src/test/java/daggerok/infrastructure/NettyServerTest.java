@@ -0,0 +1,182 @@
+package daggerok.infrastructure;
+
+import io.netty.channel.Channel;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class NettyServerTest {
+
+    private static final String UPGRADE_TO_H2C = "Connection: Upgrade, HTTP2-Settings\r\n"
+            + "Upgrade: h2c\r\n"
+            + "HTTP2-Settings: AAMAAABkAARAAAAAAAIAAAAA\r\n";
+
+    private Path dbPath = Paths.get("target", "test-db-" + System.currentTimeMillis());
+
+    private Channel server;
+
+    // CDI container started by jersey also starts event store
+    @BeforeEach
+    void setUp() {
+        System.setProperty("eventStore.dbBasePath", dbPath.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (Objects.nonNull(server)) server.close().syncUninterruptibly();
+        System.clearProperty("eventStore.dbBasePath");
+        if (Files.notExists(dbPath)) return;
+        try (Stream<Path> paths = Files.walk(dbPath)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void should_parse_server_config() {
+        // given
+        Map<String, String> config = new HashMap<>();
+        config.put("server.host", "0.0.0.0");
+        config.put("server.port", "8081");
+        config.put("server.protocol", " HTTP1 ");
+
+        // then
+        assertThat(new NettyServer(config).getBaseUri()).hasToString("http://0.0.0.0:8081/");
+        assertThat(new NettyServer(new HashMap<>()).getBaseUri()).hasToString("http://127.0.0.1:8080/");
+        config.put("server.protocol", "h3");
+        assertThatThrownBy(() -> new NettyServer(config)).isInstanceOf(IllegalStateException.class)
+                                                         .hasMessageContaining("unknown server.protocol: h3");
+    }
+
+    @Test
+    void should_serve_requests_and_reject_oversized_bodies() throws Exception {
+        // given
+        int port = start("h2c", 16);
+
+        // when
+        try (Socket socket = connect(port)) {
+            String small = exchange(socket, post("0123456789", ""));
+            String ok = exchange(socket, "GET /echo HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            String tooLarge = exchange(socket, post("0123456789abcdefXYZ", ""));
+
+            // then
+            assertThat(small).startsWith("HTTP/1.1 200").endsWith("\r\n\r\n10");
+            assertThat(ok).startsWith("HTTP/1.1 200").endsWith("\r\n\r\nok");
+            assertThat(tooLarge).startsWith("HTTP/1.1 413")
+                                .containsIgnoringCase("connection: close")
+                                .endsWith("{\"error\":\"request body exceeds 16 bytes\"}");
+            assertThat(socket.getInputStream().read()).isEqualTo(-1);
+        }
+        // body without Content-Length is counted while its chunks are received
+        try (Socket socket = connect(port)) {
+            String chunked = exchange(socket, "POST /echo HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Transfer-Encoding: chunked\r\n\r\n"
+                    + "a\r\n0123456789\r\na\r\n0123456789\r\n0\r\n\r\n");
+            assertThat(chunked).startsWith("HTTP/1.1 413");
+            assertThat(socket.getInputStream().read()).isEqualTo(-1);
+        }
+        try (Socket socket = connect(port)) {
+            assertThat(exchange(socket, "GET /echo HTTP/1.1\r\nHost: localhost\r\n" + UPGRADE_TO_H2C + "\r\n"))
+                    .startsWith("HTTP/1.1 101");
+        }
+    }
+
+    @Test
+    void should_not_upgrade_to_h2c_in_http1_mode() throws Exception {
+        // given
+        int port = start("http1", 0);
+
+        // when
+        try (Socket socket = connect(port)) {
+            String upgrade = exchange(socket, "GET /echo HTTP/1.1\r\nHost: localhost\r\n" + UPGRADE_TO_H2C + "\r\n");
+            String unlimited = exchange(socket, post("0123456789abcdefXYZ", ""));
+
+            // then
+            assertThat(upgrade).startsWith("HTTP/1.1 200").endsWith("\r\n\r\nok");
+            assertThat(unlimited).startsWith("HTTP/1.1 200").endsWith("\r\n\r\n19");
+        }
+    }
+
+    /* Private API */
+
+    // server on ephemeral port, returns port it's bound to
+    private int start(String protocol, long maxContentLength) {
+        Map<String, String> config = new HashMap<>();
+        config.put("server.port", "0");
+        config.put("server.protocol", protocol);
+        config.put("server.maxContentLength", String.valueOf(maxContentLength));
+        server = new NettyServer(config).start(new ResourceConfig(EchoResource.class));
+        return ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    private static Socket connect(int port) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static String post(String body, String headers) {
+        return String.format("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                                     + "Content-Length: %d\r\n%s\r\n%s", body.length(), headers, body);
+    }
+
+    // sends request and reads single response: its headers and Content-Length body (if any)
+    private static String exchange(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(UTF_8));
+        socket.getOutputStream().flush();
+        InputStream input = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        while (!response.toString(UTF_8).endsWith("\r\n\r\n")) {
+            int next = input.read();
+            if (next < 0) break;
+            response.write(next);
+        }
+        String headers = response.toString(UTF_8).toLowerCase();
+        int contentLength = headers.lines()
+                                   .filter(line -> line.startsWith("content-length:"))
+                                   .map(line -> Integer.parseInt(line.substring("content-length:".length()).trim()))
+                                   .findFirst()
+                                   .orElse(0);
+        response.write(input.readNBytes(contentLength));
+        return response.toString(UTF_8);
+    }
+
+    @javax.ws.rs.Path("echo")
+    public static class EchoResource {
+
+        @GET
+        @Produces(MediaType.TEXT_PLAIN)
+        public String get() {
+            return "ok";
+        }
+
+        // amount of received body characters
+        @POST
+        @Produces(MediaType.TEXT_PLAIN)
+        public String post(String body) {
+            return String.valueOf(body.length());
+        }
+    }
+}
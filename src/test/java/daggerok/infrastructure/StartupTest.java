@@ -0,0 +1,55 @@
+package daggerok.infrastructure;
+
+import daggerok.domain.CounterResource;
+import daggerok.eventstore.EventStoreResource;
+import daggerok.eventstore.EventStreamFrameWriter;
+import daggerok.jackson.JacksonProvider;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.Path;
+import javax.ws.rs.ext.Provider;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StartupTest {
+
+    @Test
+    void should_find_resources_and_providers_in_build_time_index() {
+        // when
+        Optional<Set<Class<?>>> indexed = IndexedClasses.annotatedBy("daggerok", Path.class, Provider.class);
+        Optional<Set<Class<?>>> notIndexed = IndexedClasses.annotatedBy("org.glassfish", Path.class);
+
+        // then
+        assertThat(indexed).hasValueSatisfying(classes -> assertThat(classes).containsExactlyInAnyOrder(
+                CounterResource.class, EventStoreResource.class, HealthResource.class,
+                ErrorMapper.class, EventStreamFrameWriter.class, JacksonProvider.class));
+        assertThat(notIndexed).isEmpty();
+    }
+
+    @Test
+    void should_time_only_finished_startup_phases() throws Exception {
+        // given
+        StartupPhases.begin("testUnfinished");
+
+        // when
+        String measured = StartupPhases.measure("testMeasured", () -> {
+            StartupPhases.begin("testNested");
+            StartupPhases.end("testNested");
+            return "measured";
+        });
+        StartupPhases.begin("testEnded");
+        TimeUnit.MILLISECONDS.sleep(20);
+        StartupPhases.end("testEnded");
+        StartupPhases.end("testNotStarted");
+
+        // then
+        assertThat(measured).isEqualTo("measured");
+        assertThat(StartupPhases.getMillis()).containsKeys("testMeasured", "testNested", "testEnded")
+                                             .doesNotContainKeys("testUnfinished", "testNotStarted");
+        assertThat(StartupPhases.getMillis().get("testEnded")).isGreaterThanOrEqualTo(20L);
+        assertThat(StartupPhases.getMillis().keySet()).containsSubsequence("testMeasured", "testNested", "testEnded");
+    }
+}